@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -180,8 +179,7 @@ public class CoffSection {
 	Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
 
 	int pageSize = Processor.pageSize;
-	byte[] memory = Machine.processor().getMemory();
-	int paddr = ppn*pageSize;
+	byte[] page = new byte[pageSize];
 	int faddr = contentOffset + spn*pageSize;
 	int initlen;
 
@@ -197,9 +195,10 @@ public class CoffSection {
 	    initlen = pageSize;
 
 	if (initlen > 0)
-	    Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+	    Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-	Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	// the rest of the page is left zeroed
+	Machine.processor().writePhysicalPage(ppn, 0, page, 0, pageSize);
     }
 
     /** The COFF object to which this section belongs. */
@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,9 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+
+	traceInt = Lib.test(dbgInt);
     }
 
     /**
@@ -120,17 +120,127 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to the last kernel tick before the next
+     * pending interrupt is due. Called by the idle thread while no thread is
+     * ready, so that its next tick runs the interrupt handler at exactly the
+     * time it would have after ticking through the gap one kernel tick at a
+     * time.
+     *
+     * <p>
+     * Does nothing if interrupts are disabled, if no interrupt is pending, or
+     * if ticks are being traced.
+     */
+    public void idle() {
+	if (!enabled || traceInt || nextDue == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	long ticks = nextDue - stats.totalTicks;
+	long skipped = ((ticks - 1) / Stats.KernelTick) * Stats.KernelTick;
+
+	if (skipped > 0) {
+	    stats.kernelTicks += skipped;
+	    stats.totalTicks += skipped;
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocate(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	if (numPending == pending.length) {
+	    PendingInterrupt[] grown = new PendingInterrupt[numPending*2];
+	    System.arraycopy(pending, 0, grown, 0, numPending);
+	    pending = grown;
+	}
+
+	siftUp(numPending++, toOccur);
+
+	if (time < nextDue)
+	    nextDue = time;
+    }
+
+    /**
+     * Return a pending interrupt record, reusing one from the free list if
+     * possible.
+     */
+    private PendingInterrupt allocate(long time, String type,
+				      Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur == null)
+	    return new PendingInterrupt(time, type, handler);
+
+	freeList = toOccur.nextFree;
+	toOccur.nextFree = null;
+	toOccur.set(time, type, handler);
+	return toOccur;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+	if (numPending > 0)
+	    siftDown(0, last);
+
+	return first;
+    }
+
+    /**
+     * Place <i>toOccur</i> at heap index <i>i</i> or above, moving later
+     * interrupts down.
+     */
+    private void siftUp(int i, PendingInterrupt toOccur) {
+	while (i > 0) {
+	    int parent = (i-1) / heapArity;
+	    if (!toOccur.before(pending[parent]))
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Place <i>toOccur</i> at heap index <i>i</i> or below, moving earlier
+     * interrupts up.
+     */
+    private void siftDown(int i, PendingInterrupt toOccur) {
+	while (true) {
+	    int child = i*heapArity + 1;
+	    if (child >= numPending)
+		break;
+
+	    // find the earliest child
+	    int end = Math.min(child + heapArity, numPending);
+	    int earliest = child;
+	    for (int c=child+1; c<end; c++) {
+		if (pending[c].before(pending[earliest]))
+		    earliest = c;
+	    }
+
+	    if (!pending[earliest].before(toOccur))
+		break;
+
+	    pending[i] = pending[earliest];
+	    i = earliest;
+	}
+
+	pending[i] = toOccur;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,7 +255,13 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
-	if (Lib.test(dbgInt))
+	// nothing can be due before the earliest pending interrupt
+	if (stats.totalTicks < nextDue && !traceInt) {
+	    enabled = true;
+	    return;
+	}
+
+	if (traceInt)
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
@@ -153,37 +269,77 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    /**
+     * Advance the simulated time by the specified number of user
+     * instructions at once, without checking for due interrupts. The caller
+     * must ensure that no pending interrupt becomes due during these ticks;
+     * see <tt>timeUntilNextInterrupt()</tt>.
+     *
+     * @param	instructions	the number of user instructions executed.
+     */
+    private void tickUser(int instructions) {
+	Stats stats = privilege.stats;
+
+	long ticks = (long) instructions * Stats.UserTick;
+	stats.userTicks += ticks;
+	stats.totalTicks += ticks;
+    }
+
+    /**
+     * Return the number of ticks until the earliest pending interrupt is
+     * due. Returns 0 when every tick must be observed individually, i.e.
+     * when interrupt tracing is enabled.
+     *
+     * @return	the number of ticks until the next interrupt is due, or
+     *		<tt>Long.MAX_VALUE</tt> if none is pending.
+     */
+    private long timeUntilNextInterrupt() {
+	if (traceInt)
+	    return 0;
+
+	if (nextDue == Long.MAX_VALUE)
+	    return Long.MAX_VALUE;
+
+	return nextDue - privilege.stats.totalTicks;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
 	Lib.assertTrue(disabled());
 
-	if (Lib.test(dbgInt))
+	if (traceInt)
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    String type = next.type;
+	    Runnable handler = next.handler;
+
+	    // the record can be reused as soon as the handler is known
+	    next.set(0, null, null);
+	    next.nextFree = freeList;
+	    freeList = next;
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
+	// handlers may have scheduled new interrupts
+	nextDue = (numPending == 0) ? Long.MAX_VALUE : pending[0].time;
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,8 +348,12 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = new PendingInterrupt[numPending];
+	System.arraycopy(pending, 0, sorted, 0, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -203,12 +363,21 @@ public final class Interrupt {
 
     private class PendingInterrupt implements Comparable {
 	PendingInterrupt(long time, String type, Runnable handler) {
+	    set(time, type, handler);
+	}
+
+	void set(long time, String type, Runnable handler) {
 	    this.time = time;
 	    this.type = type;
 	    this.handler = handler;
 	    this.id = numPendingInterruptsCreated++;
 	}
 
+	boolean before(PendingInterrupt toOccur) {
+	    return (time < toOccur.time ||
+		    (time == toOccur.time && id < toOccur.id));
+	}
+
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
 
@@ -228,6 +397,7 @@ public final class Interrupt {
 	long time;
 	String type;
 	Runnable handler;
+	PendingInterrupt nextFree = null;
 
 	private long id;
     }
@@ -237,7 +407,24 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    /**
+     * The pending interrupts, as a 4-ary heap ordered by time and then by
+     * the order in which they were scheduled.
+     */
+    private PendingInterrupt[] pending;
+    private int numPending = 0;
+    /** Records of interrupts that have run, kept for reuse. */
+    private PendingInterrupt freeList = null;
+    /**
+     * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+     * if none is pending. Lets <tt>tick()</tt> skip the pending heap until an
+     * interrupt is actually due.
+     */
+    private long nextDue = Long.MAX_VALUE;
+    /** <tt>true</tt> if every tick is traced (<tt>-d i</tt>). */
+    private final boolean traceInt;
+
+    private static final int heapArity = 4;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +436,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tickUser(int instructions) {
+	    Interrupt.this.tickUser(instructions);
+	}
+
+	public long timeUntilNextInterrupt() {
+	    return Interrupt.this.timeUntilNextInterrupt();
+	}
     }
 }
@@ -97,9 +97,23 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (haltHandler != null)
+	    haltHandler.run();
+	if (processor != null)
+	    processor.printTrace();
 	terminate();
     }
 
+    /**
+     * Set the handler that <tt>halt()</tt> calls after printing the stats,
+     * so that the kernel can print statistics of its own.
+     *
+     * @param	handler	the handler to call when Nachos halts.
+     */
+    public static void setHaltHandler(Runnable handler) {
+	haltHandler = handler;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -409,6 +423,7 @@ public final class Machine {
     private static String[] args = null;
 
     private static Stats stats = new Stats();
+    private static Runnable haltHandler = null;
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
@@ -0,0 +1,954 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Translates hot basic blocks of MIPS code into JVM bytecode. Each block
+ * becomes a class extending <tt>Processor.CompiledBlock</tt>, whose
+ * <tt>run()</tt> method has the same effect on the processor as
+ * interpreting the block one instruction at a time.
+ *
+ * <p>
+ * Generated code works directly on the processor's register array. Memory
+ * accesses, overflow-checked arithmetic, multiplication and division are
+ * performed by calling the protected methods of
+ * <tt>Processor.CompiledBlock</tt>, which also maintain the delayed load
+ * state, so exceptions are raised with exactly the same processor state as
+ * the interpreter would leave.
+ *
+ * <p>
+ * The generated classes are defined by a private class loader, and cached by
+ * start address and instruction words, so that code that is compiled again
+ * (for example, each time the same program is loaded) reuses its class. A
+ * loader defines at most a fixed number of classes. Once it is full, the
+ * processor drops all of its compiled blocks and calls <tt>reset()</tt>,
+ * which replaces the loader, so that the old classes can be unloaded.
+ * Creating a class loader requires privilege; see
+ * <tt>NachosSecurityManager</tt>.
+ */
+final class MipsCompiler {
+    /**
+     * Allocate a new compiler.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	maxClasses	the most classes one class loader may define.
+     */
+    MipsCompiler(Privilege privilege, int maxClasses) {
+	Lib.assertTrue(maxClasses > 0);
+
+	this.privilege = privilege;
+	this.maxClasses = maxClasses;
+
+	reset();
+    }
+
+    /**
+     * Test whether the current class loader has defined as many classes as
+     * it may. The caller must drop every compiled block and call
+     * <tt>reset()</tt> before compiling anything else.
+     *
+     * @return	<tt>true</tt> if no more classes can be defined.
+     */
+    boolean isFull() {
+	return (classes.size() >= maxClasses);
+    }
+
+    /**
+     * Forget every generated class, and start a new class loader. Once the
+     * blocks created by the old loader are unreachable, its classes can be
+     * unloaded.
+     */
+    void reset() {
+	classes.clear();
+
+	privilege.doPrivileged(new Runnable() {
+	    public void run() {
+		loader = new BlockLoader(MipsCompiler.class.getClassLoader());
+	    }
+	});
+    }
+
+    /**
+     * Test whether the specified instruction can be part of a compiled
+     * block. Syscalls and invalid or unimplemented instructions are left to
+     * the interpreter.
+     *
+     * @param	inst	the decoded instruction.
+     * @return	<tt>true</tt> if the instruction can be compiled.
+     */
+    static boolean canCompile(Processor.DecodedInstruction inst) {
+	switch (inst.operation) {
+	case Processor.Mips.SYSCALL:
+	case Processor.Mips.UNIMPL:
+	case Processor.Mips.INVALID:
+	    return false;
+	default:
+	    return true;
+	}
+    }
+
+    /**
+     * Compile a basic block. If the block contains a branch or jump, it must
+     * be the second to last instruction, followed by its delay slot. If the
+     * same code was compiled at the same address before, its class is
+     * reused. Must not be called while <tt>isFull()</tt>.
+     *
+     * @param	startPC	the virtual address of the first instruction.
+     * @param	code	the decoded instructions of the block.
+     * @return	a new, unbound instance of the compiled block.
+     */
+    Processor.CompiledBlock compile(int startPC,
+				    Processor.DecodedInstruction[] code) {
+	int[] words = new int[code.length];
+	for (int i=0; i<code.length; i++)
+	    words[i] = code[i].value;
+
+	BlockKey key = new BlockKey(startPC, words);
+
+	Class<?> block = classes.get(key);
+	if (block == null) {
+	    Lib.assertTrue(!isFull());
+
+	    block = define(startPC, code);
+	    classes.put(key, block);
+	}
+
+	return instantiate(block);
+    }
+
+    /**
+     * Generate and define the class of a compiled block.
+     */
+    private Class<?> define(int startPC, Processor.DecodedInstruction[] code) {
+	String name = packageName + ".Block" + (numCompiled++);
+
+	ClassAssembler cls = new ClassAssembler(name.replace('.', '/'),
+						superName);
+	Method method = cls.method("run");
+
+	// r1 = this.registers
+	method.op(ALOAD_0);
+	method.op(GETFIELD);
+	method.u2(cls.fieldref(superName, "registers", "[I"));
+	method.op(ASTORE_1);
+
+	// the delayed load state on entry is not known
+	boolean loadPending = true;
+	boolean inDelaySlot = false;
+	boolean branched = false;
+	int pc = startPC;
+
+	for (int i=0; i<code.length; i++, pc+=4) {
+	    Processor.DecodedInstruction inst = code[i];
+
+	    if (isBranch(inst))
+		compileBranch(cls, method, inst, i, pc, loadPending);
+	    else
+		compileInstruction(cls, method, inst, i, pc, loadPending,
+				   inDelaySlot);
+
+	    loadPending = isLoad(inst);
+	    inDelaySlot = isBranch(inst);
+	    branched |= inDelaySlot;
+	}
+
+	if (branched) {
+	    // PC = branch destination, nextPC = PC+4
+	    method.op(ALOAD_1);
+	    method.constant(cls, Processor.regPC);
+	    method.op(ILOAD_2);
+	    method.op(IASTORE);
+
+	    method.op(ALOAD_1);
+	    method.constant(cls, Processor.regNextPC);
+	    method.op(ILOAD_2);
+	    method.constant(cls, 4);
+	    method.op(IADD);
+	    method.op(IASTORE);
+	}
+	else {
+	    method.op(ALOAD_1);
+	    method.constant(cls, Processor.regPC);
+	    method.constant(cls, pc);
+	    method.op(IASTORE);
+
+	    method.op(ALOAD_1);
+	    method.constant(cls, Processor.regNextPC);
+	    method.constant(cls, pc+4);
+	    method.op(IASTORE);
+	}
+
+	method.constant(cls, code.length);
+	method.op(IRETURN);
+
+	final String className = name;
+	final byte[] bytes = cls.toByteArray();
+
+	return (Class<?>)
+	    privilege.doPrivileged(new PrivilegedAction<Object>() {
+		public Object run() {
+		    return loader.define(className, bytes);
+		}
+	    });
+    }
+
+    /**
+     * Create an instance of a generated class.
+     */
+    private Processor.CompiledBlock instantiate(final Class<?> block) {
+	return (Processor.CompiledBlock)
+	    privilege.doPrivileged(new PrivilegedAction<Object>() {
+		public Object run() {
+		    try {
+			return block.getDeclaredConstructor().newInstance();
+		    }
+		    catch (Exception e) {
+			throw new Error("could not load compiled block", e);
+		    }
+		}
+	    });
+    }
+
+    private static boolean isBranch(Processor.DecodedInstruction inst) {
+	return Lib.test(Processor.Mips.BRANCH, inst.flags);
+    }
+
+    private static boolean isLoad(Processor.DecodedInstruction inst) {
+	return Lib.test(Processor.Mips.DELAYEDLOAD, inst.flags);
+    }
+
+    private static boolean test(Processor.DecodedInstruction inst, int flag) {
+	return Lib.test(flag, inst.flags);
+    }
+
+    /**
+     * Push the value of a register.
+     */
+    private void pushRegister(ClassAssembler cls, Method method, int reg) {
+	// r0 is never written, so it always reads as 0
+	if (reg == 0) {
+	    method.constant(cls, 0);
+	}
+	else {
+	    method.op(ALOAD_1);
+	    method.constant(cls, reg);
+	    method.op(IALOAD);
+	}
+    }
+
+    /**
+     * Push the low 32 bits of the first source operand, as computed by
+     * <tt>Instruction.decode()</tt>.
+     */
+    private void pushSrc1(ClassAssembler cls, Method method,
+			  Processor.DecodedInstruction inst) {
+	if (test(inst, Processor.Mips.SRC1SH))
+	    method.constant(cls, inst.sh);
+	else
+	    pushRegister(cls, method, inst.rs);
+    }
+
+    /**
+     * Push the low 32 bits of the second source operand, as computed by
+     * <tt>Instruction.decode()</tt>.
+     */
+    private void pushSrc2(ClassAssembler cls, Method method,
+			  Processor.DecodedInstruction inst) {
+	if (test(inst, Processor.Mips.SRC2IMM))
+	    method.constant(cls, inst.imm);
+	else
+	    pushRegister(cls, method, inst.rt);
+    }
+
+    private void invokeHelper(ClassAssembler cls, Method method, String name,
+			      String descriptor) {
+	method.op(INVOKEVIRTUAL);
+	method.u2(cls.methodref(superName, name, descriptor));
+    }
+
+    /**
+     * Compile an instruction that is not a branch or jump.
+     */
+    private void compileInstruction(ClassAssembler cls, Method method,
+				    Processor.DecodedInstruction inst,
+				    int index, int pc, boolean loadPending,
+				    boolean inDelaySlot) {
+	boolean unsigned = test(inst, Processor.Mips.UNSIGNED);
+	int operation = inst.operation;
+
+	boolean mayFault =
+	    (test(inst, Processor.Mips.OVERFLOW) ||
+	     operation == Processor.Mips.DIV ||
+	     operation == Processor.Mips.LOAD ||
+	     operation == Processor.Mips.LWL ||
+	     operation == Processor.Mips.LWR ||
+	     operation == Processor.Mips.STORE ||
+	     operation == Processor.Mips.SWL ||
+	     operation == Processor.Mips.SWR);
+
+	if (mayFault) {
+	    method.op(ALOAD_0);
+	    method.constant(cls, index);
+	    if (inDelaySlot) {
+		invokeHelper(cls, method, "enter", "(I)V");
+	    }
+	    else {
+		method.constant(cls, pc);
+		invokeHelper(cls, method, "enter", "(II)V");
+	    }
+	}
+
+	// loads and stores complete the delayed load state themselves
+	switch (operation) {
+	case Processor.Mips.LOAD:
+	    method.op(ALOAD_0);
+	    pushAddress(cls, method, inst);
+	    method.constant(cls, inst.size);
+	    method.constant(cls, unsigned ? 1 : 0);
+	    method.constant(cls, inst.dstReg);
+	    invokeHelper(cls, method, "load", "(IIZI)V");
+	    return;
+	case Processor.Mips.LWL:
+	case Processor.Mips.LWR:
+	    method.op(ALOAD_0);
+	    pushAddress(cls, method, inst);
+	    method.constant(cls, inst.dstReg);
+	    invokeHelper(cls, method,
+			 operation == Processor.Mips.LWL ?
+			 "loadLeft" : "loadRight", "(II)V");
+	    return;
+	case Processor.Mips.STORE:
+	    method.op(ALOAD_0);
+	    pushAddress(cls, method, inst);
+	    method.constant(cls, inst.size);
+	    pushRegister(cls, method, inst.rt);
+	    invokeHelper(cls, method, "store", "(III)Z");
+	    endIfCodeModified(cls, method, index, pc, inDelaySlot);
+	    return;
+	case Processor.Mips.SWL:
+	case Processor.Mips.SWR:
+	    method.op(ALOAD_0);
+	    pushAddress(cls, method, inst);
+	    pushRegister(cls, method, inst.rt);
+	    invokeHelper(cls, method,
+			 operation == Processor.Mips.SWL ?
+			 "storeLeft" : "storeRight", "(II)Z");
+	    endIfCodeModified(cls, method, index, pc, inDelaySlot);
+	    return;
+	}
+
+	boolean hasDst = test(inst, Processor.Mips.DST);
+	boolean writesDst = hasDst && inst.dstReg != 0;
+
+	if (writesDst) {
+	    method.op(ALOAD_1);
+	    method.constant(cls, inst.dstReg);
+	}
+
+	switch (operation) {
+	case Processor.Mips.ADD:
+	case Processor.Mips.SUB:
+	    if (test(inst, Processor.Mips.OVERFLOW))
+		method.op(ALOAD_0);
+	    pushSrc1(cls, method, inst);
+	    pushSrc2(cls, method, inst);
+	    if (test(inst, Processor.Mips.OVERFLOW))
+		invokeHelper(cls, method,
+			     operation == Processor.Mips.ADD ?
+			     "addChecked" : "subChecked", "(II)I");
+	    else
+		method.op(operation == Processor.Mips.ADD ? IADD : ISUB);
+	    break;
+
+	case Processor.Mips.MULT:
+	case Processor.Mips.DIV:
+	    method.op(ALOAD_0);
+	    pushSrc1(cls, method, inst);
+	    pushSrc2(cls, method, inst);
+	    method.constant(cls, unsigned ? 1 : 0);
+	    invokeHelper(cls, method,
+			 operation == Processor.Mips.MULT ? "mult" : "div",
+			 "(IIZ)V");
+	    break;
+
+	case Processor.Mips.SLL:
+	case Processor.Mips.SRA:
+	case Processor.Mips.SRL:
+	    // the shift amount is masked to 5 bits by the JVM, as by decode()
+	    pushSrc2(cls, method, inst);
+	    pushSrc1(cls, method, inst);
+	    // the interpreter shifts the sign-extended source, so the low 32
+	    // bits of SRL are those of an arithmetic shift
+	    method.op(operation == Processor.Mips.SLL ? ISHL : ISHR);
+	    break;
+
+	case Processor.Mips.SLT:
+	    pushSrc1(cls, method, inst);
+	    if (unsigned) {
+		method.constant(cls, Integer.MIN_VALUE);
+		method.op(IXOR);
+	    }
+	    pushSrc2(cls, method, inst);
+	    if (unsigned) {
+		method.constant(cls, Integer.MIN_VALUE);
+		method.op(IXOR);
+	    }
+	    {
+		Label notLess = new Label(), done = new Label();
+		method.branch(IF_ICMPGE, notLess);
+		method.constant(cls, 1);
+		method.branch(GOTO, done);
+		method.label(notLess);
+		method.constant(cls, 0);
+		method.label(done);
+	    }
+	    break;
+
+	case Processor.Mips.AND:
+	case Processor.Mips.OR:
+	case Processor.Mips.NOR:
+	case Processor.Mips.XOR:
+	    pushSrc1(cls, method, inst);
+	    pushSrc2(cls, method, inst);
+	    if (operation == Processor.Mips.AND) {
+		method.op(IAND);
+	    }
+	    else if (operation == Processor.Mips.XOR) {
+		method.op(IXOR);
+	    }
+	    else {
+		method.op(IOR);
+		if (operation == Processor.Mips.NOR) {
+		    method.constant(cls, -1);
+		    method.op(IXOR);
+		}
+	    }
+	    break;
+
+	case Processor.Mips.LUI:
+	    method.constant(cls, inst.imm << 16);
+	    break;
+
+	case Processor.Mips.MFLO:
+	    pushRegister(cls, method, Processor.regLo);
+	    break;
+	case Processor.Mips.MFHI:
+	    pushRegister(cls, method, Processor.regHi);
+	    break;
+
+	case Processor.Mips.MTLO:
+	case Processor.Mips.MTHI:
+	    method.op(ALOAD_1);
+	    method.constant(cls, operation == Processor.Mips.MTLO ?
+			    Processor.regLo : Processor.regHi);
+	    pushSrc1(cls, method, inst);
+	    method.op(IASTORE);
+	    break;
+
+	default:
+	    Lib.assertNotReached();
+	}
+
+	boolean producesValue = (operation != Processor.Mips.MULT &&
+				 operation != Processor.Mips.DIV &&
+				 operation != Processor.Mips.MTLO &&
+				 operation != Processor.Mips.MTHI);
+
+	if (loadPending) {
+	    method.op(ALOAD_0);
+	    invokeHelper(cls, method, "finishLoad", "()V");
+	}
+
+	if (writesDst)
+	    method.op(IASTORE);
+	else if (producesValue)
+	    method.op(POP);
+    }
+
+    /**
+     * Leave the block after a store if the store helper returned
+     * <tt>true</tt>, meaning that it modified a page holding compiled code.
+     * The rest of the block may have changed, so the interpreter carries on
+     * from the next instruction. A store in a delay slot ends the block
+     * anyway.
+     */
+    private void endIfCodeModified(ClassAssembler cls, Method method,
+				   int index, int pc, boolean inDelaySlot) {
+	if (inDelaySlot) {
+	    method.op(POP);
+	    return;
+	}
+
+	Label unchanged = new Label();
+	method.branch(IFEQ, unchanged);
+
+	// PC = next instruction, nextPC = PC+4
+	method.op(ALOAD_1);
+	method.constant(cls, Processor.regPC);
+	method.constant(cls, pc+4);
+	method.op(IASTORE);
+
+	method.op(ALOAD_1);
+	method.constant(cls, Processor.regNextPC);
+	method.constant(cls, pc+8);
+	method.op(IASTORE);
+
+	method.constant(cls, index+1);
+	method.op(IRETURN);
+
+	method.label(unchanged);
+    }
+
+    /**
+     * Push <tt>registers[rs] + imm</tt>, the effective address of a load or
+     * store.
+     */
+    private void pushAddress(ClassAssembler cls, Method method,
+			     Processor.DecodedInstruction inst) {
+	pushRegister(cls, method, inst.rs);
+	if (inst.imm != 0) {
+	    method.constant(cls, inst.imm);
+	    method.op(IADD);
+	}
+    }
+
+    /**
+     * Compile a branch or jump. Leaves the address of the instruction
+     * following the delay slot in local 2, and sets the PC registers as they
+     * are while the delay slot executes.
+     */
+    private void compileBranch(ClassAssembler cls, Method method,
+			       Processor.DecodedInstruction inst,
+			       int index, int pc, boolean loadPending) {
+	int notTakenPC = pc+8;
+	int targetPC;
+
+	switch (inst.format) {
+	case Processor.Mips.IFMT:
+	    targetPC = pc+4 + inst.branchOffset;
+	    break;
+	case Processor.Mips.JFMT:
+	    targetPC = ((pc+4)&0xF0000000) | (inst.target<<2);
+	    break;
+	default:
+	    targetPC = 0;
+	    break;
+	}
+
+	if (inst.operation == Processor.Mips.JUMP) {
+	    if (inst.format == Processor.Mips.RFMT)
+		pushRegister(cls, method, inst.rs);
+	    else
+		method.constant(cls, targetPC);
+	    method.op(ISTORE_2);
+	}
+	else {
+	    Label notTaken = new Label(), done = new Label();
+
+	    pushRegister(cls, method, inst.rs);
+
+	    switch (inst.operation) {
+	    case Processor.Mips.BEQ:
+		pushRegister(cls, method, inst.rt);
+		method.branch(IF_ICMPNE, notTaken);
+		break;
+	    case Processor.Mips.BNE:
+		pushRegister(cls, method, inst.rt);
+		method.branch(IF_ICMPEQ, notTaken);
+		break;
+	    case Processor.Mips.BLEZ:
+		method.branch(IFGT, notTaken);
+		break;
+	    case Processor.Mips.BGTZ:
+		method.branch(IFLE, notTaken);
+		break;
+	    case Processor.Mips.BLTZ:
+		method.branch(IFGE, notTaken);
+		break;
+	    case Processor.Mips.BGEZ:
+		method.branch(IFLT, notTaken);
+		break;
+	    default:
+		Lib.assertNotReached();
+	    }
+
+	    method.constant(cls, targetPC);
+	    method.op(ISTORE_2);
+	    method.branch(GOTO, done);
+	    method.label(notTaken);
+	    method.constant(cls, notTakenPC);
+	    method.op(ISTORE_2);
+	    method.label(done);
+	}
+
+	if (loadPending) {
+	    method.op(ALOAD_0);
+	    invokeHelper(cls, method, "finishLoad", "()V");
+	}
+
+	// the return address is written even if the branch is not taken
+	if (test(inst, Processor.Mips.LINK) &&
+	    test(inst, Processor.Mips.DST) && inst.dstReg != 0) {
+	    method.op(ALOAD_1);
+	    method.constant(cls, inst.dstReg);
+	    method.constant(cls, notTakenPC);
+	    method.op(IASTORE);
+	}
+
+	// PC = delay slot, nextPC = branch destination
+	method.op(ALOAD_1);
+	method.constant(cls, Processor.regPC);
+	method.constant(cls, pc+4);
+	method.op(IASTORE);
+
+	method.op(ALOAD_1);
+	method.constant(cls, Processor.regNextPC);
+	method.op(ILOAD_2);
+	method.op(IASTORE);
+    }
+
+    /**
+     * The class loader that defines compiled blocks. The security manager
+     * only lets the machine create class loaders of this class.
+     */
+    private static final class BlockLoader extends ClassLoader {
+	BlockLoader(ClassLoader parent) {
+	    super(parent);
+	}
+
+	Class<?> define(String name, byte[] bytes) {
+	    return defineClass(name, bytes, 0, bytes.length);
+	}
+    }
+
+    /**
+     * The address and instruction words of a compiled block, which together
+     * determine its generated code.
+     */
+    private static final class BlockKey {
+	BlockKey(int startPC, int[] words) {
+	    this.startPC = startPC;
+	    this.words = words;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof BlockKey))
+		return false;
+
+	    BlockKey key = (BlockKey) o;
+	    return (startPC == key.startPC && Arrays.equals(words, key.words));
+	}
+
+	public int hashCode() {
+	    return startPC*31 + Arrays.hashCode(words);
+	}
+
+	private int startPC;
+	private int[] words;
+    }
+
+    /**
+     * A forward branch target within a method.
+     */
+    private static class Label {
+	int offset = -1;
+	ArrayList<Integer> fixups = new ArrayList<Integer>();
+    }
+
+    /**
+     * The bytecode of the single method of a generated class.
+     */
+    private static class Method {
+	Method(int name, int descriptor) {
+	    this.name = name;
+	    this.descriptor = descriptor;
+	}
+
+	void op(int opcode) {
+	    code.write(opcode);
+	}
+
+	void u2(int value) {
+	    code.write(value >> 8);
+	    code.write(value);
+	}
+
+	void constant(ClassAssembler cls, int value) {
+	    if (value >= -1 && value <= 5) {
+		op(ICONST_0 + value);
+	    }
+	    else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+		op(BIPUSH);
+		op(value & 0xFF);
+	    }
+	    else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+		op(SIPUSH);
+		u2(value & 0xFFFF);
+	    }
+	    else {
+		op(LDC_W);
+		u2(cls.integer(value));
+	    }
+	}
+
+	void branch(int opcode, Label label) {
+	    int offset = code.size();
+	    op(opcode);
+	    if (label.offset >= 0) {
+		u2(label.offset - offset);
+	    }
+	    else {
+		label.fixups.add(Integer.valueOf(offset));
+		u2(0);
+	    }
+	}
+
+	void label(Label label) {
+	    label.offset = code.size();
+	    labels.add(label);
+	}
+
+	byte[] toByteArray() {
+	    byte[] bytes = code.toByteArray();
+	    for (Label label : labels)
+		resolve(bytes, label);
+	    return bytes;
+	}
+
+	private void resolve(byte[] bytes, Label label) {
+	    for (Integer fixup : label.fixups) {
+		int at = fixup.intValue();
+		int delta = label.offset - at;
+		Lib.assertTrue(delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE);
+		bytes[at+1] = (byte) (delta >> 8);
+		bytes[at+2] = (byte) delta;
+	    }
+	}
+
+	int name, descriptor;
+	ByteArrayOutputStream code = new ByteArrayOutputStream();
+	ArrayList<Label> labels = new ArrayList<Label>();
+    }
+
+    /**
+     * A minimal class file writer, sufficient for a class with a default
+     * constructor and one <tt>int run()</tt> method. Class files are
+     * written in version 49 format, which the JVM verifies by type
+     * inference, so no stack map frames are needed.
+     */
+    private class ClassAssembler {
+	ClassAssembler(String name, String superName) {
+	    thisClass = classref(name);
+	    superClass = classref(superName);
+	}
+
+	Method method(String name) {
+	    Lib.assertTrue(run == null);
+	    run = new Method(utf8(name), utf8("()I"));
+	    return run;
+	}
+
+	int utf8(String value) {
+	    return constant("U" + value, 1, value, 0, 0);
+	}
+
+	int integer(int value) {
+	    return constant("I" + value, 3, null, value, 0);
+	}
+
+	int classref(String name) {
+	    return constant("C" + name, 7, null, utf8(name), 0);
+	}
+
+	int nameAndType(String name, String descriptor) {
+	    return constant("N" + name + " " + descriptor, 12, null,
+			    utf8(name), utf8(descriptor));
+	}
+
+	int fieldref(String owner, String name, String descriptor) {
+	    return constant("F" + owner + "." + name + descriptor, 9, null,
+			    classref(owner), nameAndType(name, descriptor));
+	}
+
+	int methodref(String owner, String name, String descriptor) {
+	    return constant("M" + owner + "." + name + descriptor, 10, null,
+			    classref(owner), nameAndType(name, descriptor));
+	}
+
+	private int constant(String key, int tag, String string, int a,
+			     int b) {
+	    Integer index = constants.get(key);
+	    if (index != null)
+		return index.intValue();
+
+	    try {
+		pool.writeByte(tag);
+		switch (tag) {
+		case 1:
+		    pool.writeUTF(string);
+		    break;
+		case 3:
+		    pool.writeInt(a);
+		    break;
+		case 7:
+		    pool.writeShort(a);
+		    break;
+		default:
+		    pool.writeShort(a);
+		    pool.writeShort(b);
+		    break;
+		}
+	    }
+	    catch (IOException e) {
+		Lib.assertNotReached();
+	    }
+
+	    constants.put(key, Integer.valueOf(poolSize));
+	    return poolSize++;
+	}
+
+	byte[] toByteArray() {
+	    // constructor: super()
+	    int init = utf8("<init>");
+	    int initDescriptor = utf8("()V");
+	    int superInit = methodref(superName, "<init>", "()V");
+	    int codeAttribute = utf8("Code");
+
+	    byte[] runCode = run.toByteArray();
+
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(bytes);
+
+	    try {
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+
+		out.writeShort(poolSize);
+		out.write(poolBytes.toByteArray());
+
+		out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0);	// interfaces
+		out.writeShort(0);	// fields
+
+		out.writeShort(2);	// methods
+
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(init);
+		out.writeShort(initDescriptor);
+		out.writeShort(1);
+		out.writeShort(codeAttribute);
+		out.writeInt(12 + 5);
+		out.writeShort(1);	// max stack
+		out.writeShort(1);	// max locals
+		out.writeInt(5);
+		out.writeByte(ALOAD_0);
+		out.writeByte(INVOKESPECIAL);
+		out.writeShort(superInit);
+		out.writeByte(RETURN);
+		out.writeShort(0);	// exception table
+		out.writeShort(0);	// attributes
+
+		out.writeShort(ACC_PROTECTED);
+		out.writeShort(run.name);
+		out.writeShort(run.descriptor);
+		out.writeShort(1);
+		out.writeShort(codeAttribute);
+		out.writeInt(12 + runCode.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(runCode.length);
+		out.write(runCode);
+		out.writeShort(0);	// exception table
+		out.writeShort(0);	// attributes
+
+		out.writeShort(0);	// class attributes
+	    }
+	    catch (IOException e) {
+		Lib.assertNotReached();
+	    }
+
+	    return bytes.toByteArray();
+	}
+
+	private int thisClass, superClass;
+	private Method run = null;
+
+	private HashMap<String, Integer> constants =
+	    new HashMap<String, Integer>();
+	private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private DataOutputStream pool = new DataOutputStream(poolBytes);
+	private int poolSize = 1;
+    }
+
+    private Privilege privilege;
+    private BlockLoader loader;
+    private int numCompiled = 0;
+
+    /** The classes defined by <tt>loader</tt>. */
+    private HashMap<BlockKey, Class<?>> classes =
+	new HashMap<BlockKey, Class<?>>();
+    private int maxClasses;
+
+    private static final String packageName = "nachos.machine.compiled";
+    private static final String superName =
+	"nachos/machine/Processor$CompiledBlock";
+
+    // generous bounds; the verifier only checks that they are not exceeded
+    private static final int maxStack = 8;
+    private static final int maxLocals = 3;
+
+    private static final int
+	ACC_PUBLIC	= 0x0001,
+	ACC_PROTECTED	= 0x0004,
+	ACC_FINAL	= 0x0010,
+	ACC_SUPER	= 0x0020;
+
+    private static final int
+	ICONST_0	= 0x03,
+	BIPUSH		= 0x10,
+	SIPUSH		= 0x11,
+	LDC_W		= 0x13,
+	ILOAD_2		= 0x1c,
+	ALOAD_0		= 0x2a,
+	ALOAD_1		= 0x2b,
+	IALOAD		= 0x2e,
+	ISTORE_2	= 0x3d,
+	ASTORE_1	= 0x4c,
+	IASTORE		= 0x4f,
+	POP		= 0x57,
+	IADD		= 0x60,
+	ISUB		= 0x64,
+	ISHL		= 0x78,
+	ISHR		= 0x7a,
+	IAND		= 0x7e,
+	IOR		= 0x80,
+	IXOR		= 0x82,
+	IFEQ		= 0x99,
+	IFLT		= 0x9b,
+	IFGE		= 0x9c,
+	IFGT		= 0x9d,
+	IFLE		= 0x9e,
+	IF_ICMPEQ	= 0x9f,
+	IF_ICMPNE	= 0xa0,
+	IF_ICMPGE	= 0xa2,
+	GOTO		= 0xa7,
+	IRETURN		= 0xac,
+	RETURN		= 0xb1,
+	GETFIELD	= 0xb4,
+	INVOKEVIRTUAL	= 0xb6,
+	INVOKESPECIAL	= 0xb7;
+}
@@ -4,6 +4,13 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PrivilegedAction;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -39,18 +46,80 @@ public final class Processor {
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+
+	blockExecution = Config.getBoolean("Processor.blockExecution", true);
+
+	// resolve the debug flags once, so untraced runs only test a field
+	traceMemory = Lib.test(dbgProcessor);
+	traceRegisters = Lib.test(dbgFullDisassemble);
+	traceDisassembly = Lib.test(dbgDisassemble) || traceRegisters;
+	printPCOnFetch =
+	    (Lib.test(dbgDisassemble) && !traceMemory) || traceRegisters;
+	printPCOnDecode =
+	    Lib.test(dbgDisassemble) && traceMemory && !traceRegisters;
+
+	int traceBufferSize = Config.getInteger("Processor.traceBufferSize", 0);
+	trace = (traceBufferSize > 0) ? new TraceBuffer(traceBufferSize) : null;
+
+	// compiled blocks do not produce instruction traces
+	if (blockExecution &&
+	    Config.getBoolean("Processor.compileHotBlocks", true) &&
+	    !traceMemory && !traceDisassembly && trace == null) {
+	    compileThreshold =
+		Config.getInteger("Processor.compileThreshold", 100);
+	    maxCompiledBlocks =
+		Config.getInteger("Processor.maxCompiledBlocks", 4096);
+	    compiler = new MipsCompiler(privilege, maxCompiledBlocks);
+	}
 	
 	this.numPhysPages = numPhysPages;
 
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
-	mainMemory = new byte[pageSize * numPhysPages];
+	Lib.assertTrue(numPhysPages > 0 &&
+		       numPhysPages <= Integer.MAX_VALUE / pageSize);
+	int memorySize = pageSize * numPhysPages;
+
+	String memoryBacking = Config.getString("Processor.memoryBacking",
+						"heap");
+	if (memoryBacking.equals("heap")) {
+	    mainMemory = new byte[memorySize];
+	    memoryView = ByteBuffer.wrap(mainMemory);
+	}
+	else if (memoryBacking.equals("direct")) {
+	    mainMemory = null;
+	    memoryView = ByteBuffer.allocateDirect(memorySize);
+	}
+	else if (memoryBacking.equals("mmap")) {
+	    mainMemory = null;
+	    memoryView = mapMemory(memorySize);
+	}
+	else {
+	    Lib.assertNotReached("unknown Processor.memoryBacking: " +
+				 memoryBacking);
+	}
+	memoryView.order(ByteOrder.LITTLE_ENDIAN);
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	compiledPages = new int[numPhysPages];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+	    tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+	    Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbWays <= tlbSize &&
+			   tlbSize % tlbWays == 0);
+	    tlbSets = tlbSize / tlbWays;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    int numBuckets = Integer.highestOneBit(tlbSize*2 - 1);
+	    tlbBucketMask = numBuckets - 1;
+	    tlbBuckets = new int[numBuckets];
+	    tlbChain = new int[tlbSize];
+	    for (int i=0; i<numBuckets; i++)
+		tlbBuckets[i] = -1;
 	}
 	else {
 	    translations = null;
@@ -94,17 +163,215 @@ public final class Processor {
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    int limit = blockExecution ? getBlockLimit() : 1;
+	    int executed = 0;
+	    CompiledBlock block = null;
+
 	    try {
-		inst.run();
+		inst.fetch();
+
+		if (compiler != null)
+		    block = getCompiledBlock(inst, limit);
+
+		if (block != null) {
+		    executed = block.run();
+		    inst.abortBlock();
+		}
+		else {
+		    inst.runFetched();
+		    executed++;
+
+		    while (executed < limit && !inst.endsBlock()) {
+			inst.run();
+			executed++;
+		    }
+		}
 	    }
 	    catch (MipsException e) {
+		inst.abortBlock();
+
+		if (block != null)
+		    executed = block.executed;
+
+		// charge the instructions that completed before the fault
+		if (executed > 0)
+		    privilege.interrupt.tickUser(executed);
+
 		e.handle();
+
+		privilege.interrupt.tick(false);
+		continue;
 	    }
 
+	    if (executed > 1)
+		privilege.interrupt.tickUser(executed-1);
+
 	    privilege.interrupt.tick(false);
 	}
     }
 
+    /**
+     * Return the maximum number of instructions that can be executed as one
+     * block before the next interrupt is due. Every instruction but the last
+     * one of a block is charged without checking for interrupts, so the
+     * limit makes sure that interrupt handlers still run at exactly the same
+     * tick as they would if each instruction were stepped individually.
+     *
+     * @return	the number of instructions that may be executed as a block.
+     */
+    private int getBlockLimit() {
+	long ticks = privilege.interrupt.timeUntilNextInterrupt();
+	long limit = (ticks + Stats.UserTick - 1) / Stats.UserTick;
+
+	if (limit < 1)
+	    return 1;
+	else if (limit > maxBlockLength)
+	    return maxBlockLength;
+	else
+	    return (int) limit;
+    }
+
+    /**
+     * Return the compiled form of the basic block starting with the
+     * instruction just fetched by <i>inst</i>, or <tt>null</tt> if the block
+     * must be interpreted. Counts how often each block is entered, and
+     * compiles a block once its count reaches <tt>compileThreshold</tt>.
+     *
+     * <p>
+     * Blocks are cached per physical page but compiled for the virtual
+     * address the page was mapped at; a block found at a different PC is
+     * dropped and compiled again once it is hot. At most
+     * <tt>Processor.maxCompiledBlocks</tt> blocks are cached; when that many
+     * are, all of them are dropped. A compiled block is only used if the
+     * current instruction is not in a branch delay slot, all of its
+     * instructions still match physical memory, and it is short enough to
+     * complete before the next interrupt is due.
+     *
+     * @param	inst	the instruction fetched at the start of the block.
+     * @param	limit	the maximum number of instructions the block may
+     *			execute.
+     * @return	the compiled block to run, or <tt>null</tt>.
+     */
+    private CompiledBlock getCompiledBlock(Instruction inst, int limit) {
+	DecodedInstruction first = inst.decoded;
+	int pc = registers[regPC];
+
+	if (first == null || limit < 2 || registers[regNextPC] != pc+4)
+	    return null;
+
+	CompiledBlock block = first.compiled;
+
+	int ppn = inst.paddr / pageSize;
+
+	// the page may now be mapped at another virtual address
+	if (block != null && block.startPC != pc) {
+	    first.compiled = null;
+	    first.executions = 0;
+	    compiledPages[ppn]--;
+	    numCompiledBlocks--;
+	    block = null;
+	}
+
+	if (block == null) {
+	    if (++first.executions != compileThreshold)
+		return null;
+
+	    // this drops the decoded instruction as well, so compile it later
+	    if (numCompiledBlocks >= maxCompiledBlocks || compiler.isFull()) {
+		flushCompiledBlocks();
+		return null;
+	    }
+
+	    block = compileBlock(inst.paddr, pc);
+	    if (block == null)
+		return null;
+
+	    first.compiled = block;
+	    compiledPages[ppn]++;
+	    numCompiledBlocks++;
+	}
+
+	if (block.length > limit)
+	    return null;
+
+	// the first word was already checked against memory by getDecoded()
+	for (int i=1; i<block.length; i++) {
+	    if (memoryView.getInt(inst.paddr + i*4) != block.words[i])
+		return null;
+	}
+
+	return block;
+    }
+
+    /**
+     * Compile the basic block starting at physical address <i>paddr</i>,
+     * which is mapped at virtual address <i>pc</i>. The block ends after
+     * the delay slot of the first branch or jump, before the first
+     * instruction that cannot be compiled, at the end of the page, or after
+     * <tt>maxCompiledLength</tt> instructions, whichever comes first.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @param	pc	the virtual address of the first instruction.
+     * @return	the compiled block, or <tt>null</tt> if the block is empty.
+     */
+    private CompiledBlock compileBlock(int paddr, int pc) {
+	int pageEnd = (paddr / pageSize + 1) * pageSize;
+	int maxLength = Math.min((pageEnd - paddr) / 4, maxCompiledLength);
+
+	DecodedInstruction[] code = new DecodedInstruction[maxLength];
+	int length = 0;
+
+	while (length < maxLength) {
+	    int address = paddr + length*4;
+	    DecodedInstruction decoded =
+		getDecoded(address, memoryView.getInt(address));
+
+	    if (!MipsCompiler.canCompile(decoded))
+		break;
+
+	    code[length++] = decoded;
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		// include the delay slot, or leave the branch to the interpreter
+		DecodedInstruction delaySlot = null;
+		if (length < maxLength) {
+		    address = paddr + length*4;
+		    delaySlot = getDecoded(address,
+					   memoryView.getInt(address));
+		}
+
+		if (delaySlot != null && MipsCompiler.canCompile(delaySlot) &&
+		    !Lib.test(Mips.BRANCH, delaySlot.flags))
+		    code[length++] = delaySlot;
+		else
+		    length--;
+
+		break;
+	    }
+	}
+
+	if (length == 0)
+	    return null;
+
+	DecodedInstruction[] block = new DecodedInstruction[length];
+	System.arraycopy(code, 0, block, 0, length);
+
+	CompiledBlock compiled = compiler.compile(pc, block);
+
+	compiled.processor = this;
+	compiled.registers = registers;
+	compiled.startPC = pc;
+	compiled.length = length;
+	compiled.words = new int[length];
+	for (int i=0; i<length; i++)
+	    compiled.words[i] = block[i].value;
+
+	Lib.debug(dbgCompiler, "compiled " + length + " instructions at 0x" +
+		  Lib.toHexString(pc));
+
+	return compiled;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -188,6 +455,22 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the associativity of this processor's TLB. The TLB is divided
+     * into <tt>getTLBSize() / getTLBWays()</tt> sets of
+     * <tt>getTLBWays()</tt> consecutive entries each. A translation for
+     * virtual page <i>vpn</i> is only found if it is stored in set
+     * <tt>vpn % (getTLBSize() / getTLBWays())</tt>. By default the TLB is
+     * fully associative, so there is a single set.
+     *
+     * @return	the number of entries in each set of the TLB.
+     */
+    public int getTLBWays() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +488,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * An entry is only used to translate addresses in virtual pages that map
+     * to the set containing it; see <tt>getTLBWays()</tt>. If the TLB is
+     * fully associative, the location of an entry within the TLB does not
+     * affect anything.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +500,65 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	if (translations[number].valid)
+	    unlinkTLBEntry(number);
+
 	translations[number] = new TranslationEntry(entry);
+
+	if (translations[number].valid)
+	    linkTLBEntry(number);
+    }
+
+    /**
+     * Add a valid TLB entry to the hash chain for its virtual page.
+     */
+    private void linkTLBEntry(int number) {
+	int bucket = translations[number].vpn & tlbBucketMask;
+
+	tlbChain[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+    }
+
+    /**
+     * Remove a valid TLB entry from the hash chain for its virtual page.
+     */
+    private void unlinkTLBEntry(int number) {
+	int bucket = translations[number].vpn & tlbBucketMask;
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i != -1; i=tlbChain[i]) {
+	    if (tlbChain[i] == number) {
+		tlbChain[i] = tlbChain[number];
+		return;
+	    }
+	}
+
+	Lib.assertNotReached();
+    }
+
+    /**
+     * Find the TLB entry that translates the specified virtual page. If
+     * several valid entries in the page's set match, the one with the lowest
+     * index is used.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching TLB entry, or <tt>null</tt> if there is none.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	int set = vpn % tlbSets;
+	int found = -1;
+
+	for (int i=tlbBuckets[vpn & tlbBucketMask]; i != -1; i=tlbChain[i]) {
+	    if (translations[i].vpn == vpn && i / tlbWays == set &&
+		(found == -1 || i < found))
+		found = i;
+	}
+
+	return (found == -1) ? null : translations[found];
     }
 
     /**
@@ -232,12 +575,116 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Physical memory is only available as an array if
+     * <tt>Processor.memoryBacking</tt> is <tt>heap</tt>, the default. The
+     * <tt>direct</tt> and <tt>mmap</tt> backings need a kernel that uses
+     * <tt>readPhysicalPage()</tt> and <tt>writePhysicalPage()</tt> instead,
+     * as <tt>UserProcess</tt> and <tt>CoffSection</tt> do.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	Lib.assertTrue(mainMemory != null,
+		       "Processor.memoryBacking is not heap, so physical memory "
+		       + "is not an array; use readPhysicalPage() and "
+		       + "writePhysicalPage() instead of getMemory()");
+	
 	return mainMemory;
     }
 
+    /**
+     * Copy bytes from a page of physical memory into an array. Works for
+     * every kind of memory backing.
+     *
+     * @param	ppn		the physical page to read from.
+     * @param	pageOffset	the first byte to read within the page.
+     * @param	data		the array where the data will be stored.
+     * @param	offset		the first byte to write in the array.
+     * @param	length		the number of bytes to copy. The copy may not
+     *				extend past the end of the page.
+     */
+    public void readPhysicalPage(int ppn, int pageOffset, byte[] data,
+				 int offset, int length) {
+	checkPhysicalPageRange(ppn, pageOffset, data, offset, length);
+
+	ByteBuffer page = memoryView.duplicate();
+	page.position(ppn*pageSize + pageOffset);
+	page.get(data, offset, length);
+    }
+
+    /**
+     * Copy bytes from an array into a page of physical memory. Works for
+     * every kind of memory backing.
+     *
+     * @param	ppn		the physical page to write to.
+     * @param	pageOffset	the first byte to write within the page.
+     * @param	data		the array containing the data to copy.
+     * @param	offset		the first byte to copy from the array.
+     * @param	length		the number of bytes to copy. The copy may not
+     *				extend past the end of the page.
+     */
+    public void writePhysicalPage(int ppn, int pageOffset, byte[] data,
+				  int offset, int length) {
+	checkPhysicalPageRange(ppn, pageOffset, data, offset, length);
+
+	ByteBuffer page = memoryView.duplicate();
+	page.position(ppn*pageSize + pageOffset);
+	page.put(data, offset, length);
+
+	invalidateDecodedPage(ppn);
+    }
+
+    private void checkPhysicalPageRange(int ppn, int pageOffset, byte[] data,
+					int offset, int length) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+	Lib.assertTrue(pageOffset >= 0 && length >= 0 &&
+		       pageOffset+length <= pageSize);
+	Lib.assertTrue(offset >= 0 && offset+length <= data.length);
+    }
+
+    /**
+     * Map physical memory to the file named by <tt>Processor.memoryFile</tt>.
+     * The file is cleared first, so untouched pages read as zero without
+     * being allocated, and it keeps the final contents of memory after
+     * Nachos exits.
+     *
+     * @param	memorySize	the number of bytes of physical memory.
+     * @return	a buffer mapped to the file.
+     */
+    private ByteBuffer mapMemory(final int memorySize) {
+	final String fileName = Config.getString("Processor.memoryFile",
+						 "nachos.mem");
+
+	Object result =
+	    privilege.doPrivileged(new PrivilegedAction<Object>() {
+		public Object run() {
+		    try {
+			RandomAccessFile file =
+			    new RandomAccessFile(fileName, "rw");
+			file.setLength(0);
+			file.setLength(memorySize);
+
+			// the mapping stays valid after the file is closed
+			ByteBuffer map = file.getChannel().map(
+			    FileChannel.MapMode.READ_WRITE, 0, memorySize);
+			file.close();
+			return map;
+		    }
+		    catch (IOException e) {
+			return e;
+		    }
+		}
+	    });
+
+	if (result instanceof IOException) {
+	    Lib.assertNotReached("could not map physical memory to " +
+				 fileName + ": " + result);
+	}
+
+	return (ByteBuffer) result;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,7 +741,7 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -322,14 +769,9 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look up the vpn in the TLB
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -357,7 +799,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,18 +814,46 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return readMem(vaddr, size, TraceBuffer.read);
+    }
+
+    /**
+     * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+     * and return the result. If a trace buffer is in use, the access is
+     * recorded as the specified kind of access.
+     *
+     * @param	vaddr	the virtual address to read from.
+     * @param	size	the number of bytes to read (1, 2, or 4).
+     * @param	kind	<tt>TraceBuffer.fetch</tt> or <tt>TraceBuffer.read</tt>.
+     * @return		the value read.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int readMem(int vaddr, int size, int kind) throws MipsException {
+	if (traceMemory)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
-
-	if (Lib.test(dbgProcessor))
+	int paddr = translate(vaddr, size, false);
+	int value;
+	if (size == 4)
+	    value = memoryView.getInt(paddr);
+	else if (size == 2)
+	    value = memoryView.getShort(paddr);
+	else
+	    value = memoryView.get(paddr);
+
+	if (traceMemory)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
+
+	if (trace != null) {
+	    if (kind == TraceBuffer.fetch)
+		tracedInstruction = value;
+	    trace.record(kind, size, registers[regPC], tracedInstruction,
+			 vaddr, paddr, value);
+	}
 	
 	return value;
     }
@@ -395,19 +865,111 @@ public final class Processor {
      * @param	vaddr	the virtual address to write to.
      * @param	size	the number of bytes to write (1, 2, or 4).
      * @param	value	the value to store.
+     * @return	<tt>true</tt> if the store discarded compiled blocks.
      * @exception	MipsException	if a translation error occurred.
      */
-    private void writeMem(int vaddr, int size, int value)
+    private boolean writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+
+	if (size == 4)
+	    memoryView.putInt(paddr, value);
+	else if (size == 2)
+	    memoryView.putShort(paddr, (short) value);
+	else
+	    memoryView.put(paddr, (byte) value);
+
+	if (trace != null)
+	    trace.record(TraceBuffer.write, size, registers[regPC],
+			 tracedInstruction, vaddr, paddr, value);
+
+	// drop any decoded copy of the word that was just modified, and any
+	// compiled blocks on its page
+	int ppn = paddr / pageSize;
+	if (compiledPages[ppn] > 0) {
+	    invalidateDecodedPage(ppn);
+	    return true;
+	}
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+
+	return false;
+    }
+
+    /**
+     * Return the decoded form of the instruction word <i>value</i>, found at
+     * physical address <i>paddr</i>. The record is taken from the decoded
+     * instruction cache if it is present and still matches the word in
+     * memory, and is decoded and cached otherwise.
+     *
+     * <p>
+     * Comparing against <i>value</i> keeps the cache correct even when a
+     * kernel modifies memory directly through <tt>getMemory()</tt>.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @param	value	the instruction word stored at <i>paddr</i>.
+     * @return	the decoded instruction.
+     */
+    private DecodedInstruction getDecoded(int paddr, int value) {
+	int ppn = paddr / pageSize;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize / 4];
+	    decodedPages[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard all decoded instructions and compiled blocks cached for the
+     * specified physical page. Called when the contents of the page are
+     * replaced through <tt>writePhysicalPage()</tt>, and when user code
+     * stores to a page that holds compiled blocks.
+     *
+     * @param	ppn	the physical page whose decoded instructions to drop.
+     */
+    private void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	numCompiledBlocks -= compiledPages[ppn];
+	compiledPages[ppn] = 0;
+    }
+
+    /**
+     * Discard every compiled block, and let the compiler start a new class
+     * loader, so that the classes of the old blocks can be unloaded.
+     */
+    private void flushCompiledBlocks() {
+	Lib.debug(dbgCompiler, "flushing " + numCompiledBlocks +
+		  " compiled blocks");
+
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (compiledPages[ppn] > 0)
+		invalidateDecodedPage(ppn);
+	}
+
+	Lib.assertTrue(numCompiledBlocks == 0);
+	compiler.reset();
     }
 
     /**
@@ -537,10 +1099,44 @@ public final class Processor {
     /** The value to be loaded by the delayed load currently in progress. */
     private int loadValue;
 
+    /**
+     * <tt>true</tt> if straight-line code is executed a basic block at a
+     * time, charging simulated time once per block.
+     */
+    private boolean blockExecution;
+    /** The maximum number of instructions executed as a single block. */
+    private static final int maxBlockLength = 1024;
+
+    /** Compiles hot basic blocks, or <tt>null</tt> if not compiling. */
+    private MipsCompiler compiler = null;
+    /** The number of times a block is entered before it is compiled. */
+    private int compileThreshold;
+    /** The maximum number of instructions in a compiled block. */
+    private static final int maxCompiledLength = 64;
+    /**
+     * The most compiled blocks cached at once, and the most classes a
+     * compiler's class loader defines before it is replaced.
+     */
+    private int maxCompiledBlocks;
+
     /** <tt>true</tt> if using a software-managed TLB. */
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** Number of sets in the TLB. */
+    private int tlbSets;
+    /**
+     * The first valid TLB entry in each hash chain, or -1. Valid entries are
+     * chained by the low bits of their virtual page number, so a lookup only
+     * examines the few entries that could match.
+     */
+    private int[] tlbBuckets;
+    /** The next valid TLB entry in the same hash chain, or -1. */
+    private int[] tlbChain;
+    /** Mask selecting the hash chain for a virtual page number. */
+    private int tlbBucketMask;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -553,15 +1149,59 @@ public final class Processor {
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
-    /** Main memory for user programs. */
+    /**
+     * Main memory for user programs, or <tt>null</tt> if memory is not
+     * backed by an array on the heap.
+     */
     private byte[] mainMemory;
+    /**
+     * A little-endian view of main memory, so that a halfword or word is read
+     * or written as a single access rather than byte by byte. This is the
+     * only reference to memory when it is a direct or mapped buffer.
+     */
+    private ByteBuffer memoryView;
+    /**
+     * Decoded instructions, indexed by physical page number and then by word
+     * within the page. A page's array is allocated the first time code is
+     * fetched from it.
+     */
+    private DecodedInstruction[][] decodedPages;
+    /** The number of compiled blocks cached for each physical page. */
+    private int[] compiledPages;
+    /** The number of compiled blocks cached for all pages. */
+    private int numCompiledBlocks = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /**
+     * Print the trace buffer, if there is one. Called when the machine
+     * halts.
+     */
+    void printTrace() {
+	if (trace != null)
+	    trace.print();
+    }
+
+    /** <tt>true</tt> if every memory access is printed (<tt>-d p</tt>). */
+    private final boolean traceMemory;
+    /** <tt>true</tt> if instructions are disassembled (<tt>-d m</tt>). */
+    private final boolean traceDisassembly;
+    /** <tt>true</tt> if register values are disassembled (<tt>-d M</tt>). */
+    private final boolean traceRegisters;
+    /** <tt>true</tt> if the PC is printed before an instruction is fetched. */
+    private final boolean printPCOnFetch;
+    /** <tt>true</tt> if the PC is printed after an instruction is fetched. */
+    private final boolean printPCOnDecode;
+    /** Records memory accesses, or <tt>null</tt> if not tracing to memory. */
+    private final TraceBuffer trace;
+    /** The instruction word last fetched, for the trace buffer. */
+    private int tracedInstruction = 0;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgCompiler = 'j';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -589,7 +1229,7 @@ public final class Processor {
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassembly)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
@@ -611,93 +1251,109 @@ public final class Processor {
 	public void run() throws MipsException {
 	    // hopefully this looks familiar to 152 students?
 	    fetch();
+	    runFetched();
+	}
+
+	/**
+	 * Complete the instruction loaded by the last call to
+	 * <tt>fetch()</tt>.
+	 */
+	public void runFetched() throws MipsException {
 	    decode();
 	    execute();
 	    writeBack();
+
+	    // a basic block ends with the delay slot of a branch or jump
+	    lastInDelaySlot = nextInDelaySlot;
+	    nextInDelaySlot = test(Mips.BRANCH);
 	}	
 
+	/**
+	 * Test whether the last instruction run was the final instruction of
+	 * a basic block.
+	 *
+	 * @return	<tt>true</tt> if the last instruction run ended a basic
+	 *		block.
+	 */
+	public boolean endsBlock() {
+	    return lastInDelaySlot;
+	}
+
+	/**
+	 * Forget the current basic block, because an exception transferred
+	 * control to the kernel.
+	 */
+	public void abortBlock() {
+	    lastInDelaySlot = false;
+	    nextInDelaySlot = false;
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
-	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	public void fetch() throws MipsException {
+	    if (printPCOnFetch)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    // the uncached path keeps the per-access trace of -d p intact
+	    if (traceMemory) {
+		value = readMem(registers[regPC], 4, TraceBuffer.fetch);
+		decoded = null;
+		return;
+	    }
+
+	    int pc = registers[regPC];
+
+	    paddr = translate(pc, 4, false);
+	    value = memoryView.getInt(paddr);
+	    decoded = getDecoded(paddr, value);
+
+	    if (trace != null) {
+		tracedInstruction = value;
+		trace.record(TraceBuffer.fetch, 4, pc, value, pc, paddr, value);
+	    }
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    DecodedInstruction info = decoded;
+	    if (info == null)
+		info = new DecodedInstruction(value);
+
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
 
+	    size = info.size;
+	    dstReg = info.dstReg;
+
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -718,13 +1374,12 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (traceDisassembly)
 		print();	    
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (printPCOnDecode)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
@@ -756,7 +1411,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceRegisters) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1423,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (traceRegisters &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1455,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (traceRegisters) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +1495,7 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (printPCOnDecode)
 		System.out.print("\n");
 	}
 
@@ -1032,12 +1686,11 @@ public final class Processor {
 	    if (test(Mips.DST) && dstReg != 0)
 		registers[dstReg] = (int) dst;
 
-	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
-		    System.out.print("#0x" + Lib.toHexString((int) dst));
-		    if (test(Mips.DELAYEDLOAD))
-			System.out.print(" (delayed load)");
-		}
+	    if (traceRegisters &&
+		(test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
+		System.out.print("#0x" + Lib.toHexString((int) dst));
+		if (test(Mips.DELAYEDLOAD))
+		    System.out.print(" (delayed load)");
 	    }
 
 	    if (test(Mips.BRANCH) && branch) {
@@ -1046,12 +1699,17 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if (printPCOnFetch)
 		System.out.print("\n");
 	}
     
+	// basic block tracking, carried across instructions
+	private boolean lastInDelaySlot = false;
+	private boolean nextInDelaySlot = false;
+
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
+	int paddr;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,7 +1721,275 @@ public final class Processor {
 	boolean branch;
     }
 
-    private static class Mips {
+    /**
+     * The base class of the code generated for hot basic blocks by
+     * <tt>MipsCompiler</tt>. Generated classes are defined by a private class
+     * loader, so the methods they call are <tt>protected</tt> rather than
+     * package-private. Each method has exactly the same effect on the
+     * processor state as the corresponding part of <tt>Instruction</tt>.
+     *
+     * <p>
+     * Blocks are only ever created and bound by the processor itself; this
+     * class is not meant to be extended by kernels.
+     */
+    public static abstract class CompiledBlock {
+	/**
+	 * Allocate a new compiled block. The block is unusable until the
+	 * processor binds it.
+	 */
+	protected CompiledBlock() {
+	}
+
+	/**
+	 * Execute the block. Before each instruction that can cause an
+	 * exception, the generated code calls <tt>enter()</tt>, so that the
+	 * processor knows how many instructions completed if it does. A store
+	 * that discards compiled blocks ends the block early, since the
+	 * instructions after it may have changed.
+	 *
+	 * @return	the number of instructions executed.
+	 */
+	protected abstract int run() throws MipsException;
+
+	/**
+	 * Note that the instruction at index <i>index</i> within the block,
+	 * with virtual address <i>pc</i>, is about to execute, and update the
+	 * PC registers accordingly.
+	 */
+	protected final void enter(int index, int pc) {
+	    executed = index;
+	    registers[regPC] = pc;
+	    registers[regNextPC] = pc+4;
+	}
+
+	/**
+	 * Note that the instruction at index <i>index</i>, which is in a
+	 * branch delay slot, is about to execute. The PC registers were
+	 * already set by the branch.
+	 */
+	protected final void enter(int index) {
+	    executed = index;
+	}
+
+	/** Complete the delayed load in progress, if any. */
+	protected final void finishLoad() {
+	    processor.finishLoad();
+	}
+
+	/** Add with overflow checking, as <tt>add</tt> and <tt>addi</tt>. */
+	protected final int addChecked(int src1, int src2)
+	    throws MipsException {
+	    long dst = (long) src1 + (long) src2;
+	    if (Lib.test(dst,31) != Lib.test(dst,32))
+		throw processor.new MipsException(exceptionOverflow);
+	    return (int) dst;
+	}
+
+	/** Subtract with overflow checking, as <tt>sub</tt>. */
+	protected final int subChecked(int src1, int src2)
+	    throws MipsException {
+	    long dst = (long) src1 - (long) src2;
+	    if (Lib.test(dst,31) != Lib.test(dst,32))
+		throw processor.new MipsException(exceptionOverflow);
+	    return (int) dst;
+	}
+
+	/** Execute <tt>mult</tt> or <tt>multu</tt>. */
+	protected final void mult(int rs, int rt, boolean unsigned) {
+	    long src1 = rs, src2 = rt;
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst = src1 * src2;
+	    registers[regLo] = (int) Lib.extract(dst, 0, 32);
+	    registers[regHi] = (int) Lib.extract(dst, 32, 32);
+	}
+
+	/** Execute <tt>div</tt> or <tt>divu</tt>. */
+	protected final void div(int rs, int rt, boolean unsigned)
+	    throws MipsException {
+	    long src1 = rs, src2 = rt;
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    try {
+		registers[regLo] = (int) (src1 / src2);
+		registers[regHi] = (int) (src1 % src2);
+		if (registers[regLo]*src2 + registers[regHi] != src1)
+		    throw new ArithmeticException();
+	    }
+	    catch (ArithmeticException e) {
+		throw processor.new MipsException(exceptionOverflow);
+	    }
+	}
+
+	/** Execute <tt>lb</tt>, <tt>lbu</tt>, <tt>lh</tt>, <tt>lhu</tt> or
+	 * <tt>lw</tt>, starting a delayed load of <i>dstReg</i>. */
+	protected final void load(int addr, int size, boolean unsigned,
+				  int dstReg) throws MipsException {
+	    int value = processor.readMem(addr, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    processor.delayedLoad(dstReg, value, 0xFFFFFFFF);
+	}
+
+	/** Execute <tt>lwl</tt>, starting a delayed load of <i>dstReg</i>. */
+	protected final void loadLeft(int addr, int dstReg)
+	    throws MipsException {
+	    int value = processor.readMem(addr&~0x3, 4);
+
+	    int preserved = (3-(addr&0x3))*8;
+	    processor.delayedLoad(dstReg, value << preserved, -1 << preserved);
+	}
+
+	/** Execute <tt>lwr</tt>, starting a delayed load of <i>dstReg</i>. */
+	protected final void loadRight(int addr, int dstReg)
+	    throws MipsException {
+	    int value = processor.readMem(addr&~0x3, 4);
+
+	    int preserved = (addr&0x3)*8;
+	    processor.delayedLoad(dstReg, value >>> preserved, -1 >>> preserved);
+	}
+
+	/** Execute <tt>sb</tt>, <tt>sh</tt> or <tt>sw</tt>. Returns
+	 * <tt>true</tt> if the store discarded compiled blocks, in which case
+	 * the block must end. */
+	protected final boolean store(int addr, int size, int value)
+	    throws MipsException {
+	    boolean modified = processor.writeMem(addr, size, value);
+	    processor.finishLoad();
+	    return modified;
+	}
+
+	/** Execute <tt>swl</tt>, returning as <tt>store()</tt> does. */
+	protected final boolean storeLeft(int addr, int rt)
+	    throws MipsException {
+	    int value = processor.readMem(addr&~0x3, 4);
+
+	    long src2 = rt;
+	    int preserved = (3-(addr&0x3))*8;
+	    int mask = -1 >>> preserved;
+	    long dst = src2 >>> preserved;
+	    dst = (dst & mask) | (value & ~mask);
+
+	    boolean modified = processor.writeMem(addr&~0x3, 4, (int) dst);
+	    processor.finishLoad();
+	    return modified;
+	}
+
+	/** Execute <tt>swr</tt>, returning as <tt>store()</tt> does. */
+	protected final boolean storeRight(int addr, int rt)
+	    throws MipsException {
+	    int value = processor.readMem(addr&~0x3, 4);
+
+	    long src2 = rt;
+	    int preserved = (addr&0x3)*8;
+	    int mask = -1 << preserved;
+	    long dst = src2 << preserved;
+	    dst = (dst & mask) | (value & ~mask);
+
+	    boolean modified = processor.writeMem(addr&~0x3, 4, (int) dst);
+	    processor.finishLoad();
+	    return modified;
+	}
+
+	/** The register file of the processor this block is bound to. */
+	protected int[] registers;
+
+	Processor processor;
+	int startPC, length;
+	/** The instruction words this block was compiled from. */
+	int[] words;
+	/** The number of instructions completed when an exception occurs. */
+	int executed;
+    }
+
+    /**
+     * The register-independent part of a decoded instruction. Instances are
+     * cached per physical page by <tt>getDecoded()</tt>, so that instructions
+     * executed repeatedly are only decoded once.
+     */
+    static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets always use the sign-extended immediate
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	/** The raw instruction word this record was decoded from. */
+	final int value;
+	final int op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+
+	/** The number of times a basic block was entered here. */
+	int executions = 0;
+	/** The compiled basic block starting here, if any. */
+	CompiledBlock compiled = null;
+    }
+
+    static class Mips {
 	Mips() {
 	}
 
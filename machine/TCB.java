@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -40,6 +41,14 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	useVirtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	Lib.assertTrue(!useVirtualThreads ||
+		       Lib.tryLoadClass("java.lang.Thread$Builder") != null,
+		       "TCB.virtualThreads requires a JVM with virtual threads");
     }
     
     /**
@@ -66,7 +75,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,16 +103,16 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * blocking in yield(). We do this by temporarily handing the
+	     * running slot to the new TCB, starting the new Java thread, and
+	     * waiting for it to hand the slot back from threadroot(). Once the
+	     * new TCB wakes us up, it's safe to context switch to the new TCB.
 	     */
-	    currentTCB.running = false;
+	    runningTCB = this;
 	    
 	    this.javaThread.start();
 	    currentTCB.waitForInterrupt();
@@ -149,14 +158,12 @@ public final class TCB {
 	/* There are some synchronization concerns here. As soon as we wake up
 	 * the next thread, we cannot assume anything about static variables,
 	 * or about any TCB's state. Therefore, before waking up the next
-	 * thread, we must latch the value of currentTCB, and set its running
-	 * flag to false (so that, in case we get interrupted before we call
-	 * yield(), the interrupt will set the running flag and yield() won't
-	 * block).
+	 * thread, we must latch the value of currentTCB. Handing the running
+	 * slot to the next thread is a single write, so if it switches back to
+	 * us before we park, yield() sees the slot and doesn't block.
 	 */
 
 	TCB previous = currentTCB;
-	previous.running = false;
 	
 	this.interrupt();
 	previous.yield();
@@ -181,7 +188,6 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
-	currentTCB.running = false;
 
 	this.interrupt();
 	currentTCB.waitForInterrupt();
@@ -213,10 +219,10 @@ public final class TCB {
 
 	if (!isFirstTCB) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
-	     * to context switch to us. We leave the running flag false so that
-	     * we'll still run if a context switch happens before we go to
-	     * sleep. All we have to do is wake up the current TCB and then
-	     * wait to get woken up by contextSwitch() or destroy().
+	     * to context switch to us. If a context switch hands the running
+	     * slot back to us before we go to sleep, we'll still run. All we
+	     * have to do is wake up the current TCB and then wait to get woken
+	     * up by contextSwitch() or destroy().
 	     */
 	    
 	    currentTCB.interrupt();
@@ -228,7 +234,7 @@ public final class TCB {
 	     */
 	    
 	    currentTCB = this;
-	    running = true;
+	    runningTCB = this;
 	}
 
 	try {
@@ -260,6 +266,28 @@ public final class TCB {
 	}
     }
 
+    /**
+     * Create the unstarted Java thread for a new TCB. This is a virtual
+     * thread if <tt>TCB.virtualThreads</tt> is set, and an ordinary thread
+     * otherwise. Virtual threads are created reflectively, so that Nachos
+     * still builds and runs on JVMs that lack them.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (!useVirtualThreads)
+	    return new Thread(target);
+
+	try {
+	    Class<?> clsBuilder = Lib.loadClass("java.lang.Thread$Builder");
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    return (Thread) clsBuilder.getMethod("unstarted", Runnable.class)
+		.invoke(builder, target);
+	}
+	catch (Exception e) {
+	    Lib.assertNotReached("could not create a virtual thread: " + e);
+	    return null;
+	}
+    }
+
     /**
      * Invoked by threadroot() and by contextSwitch() when it is necessary to
      * wait for another TCB to context switch to this TCB. Since this TCB
@@ -280,29 +308,32 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Parks the Java thread bound to this TCB until <tt>runningTCB</tt> is
+     * this TCB. <tt>waitForInterrupt()</tt> is used whenever a TCB needs to
+     * go to wait for its turn to run. This includes the ping-pong process of
+     * starting and destroying TCBs, as well as in context switching from this
+     * TCB to another. We don't rely on <tt>currentTCB</tt>, since it is
+     * updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> may return spuriously, and an <tt>unpark()</tt> that
+     * arrives before we park is remembered, so checking the slot in a loop is
+     * all the synchronization needed. Reading the volatile slot also makes
+     * everything the waking thread did visible to this one.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (runningTCB != this)
+	    LockSupport.park(this);
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * Wake up this TCB by storing it in <tt>runningTCB</tt> and unparking the
+     * Java thread bound to it. Used in the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	runningTCB = this;
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -327,11 +358,16 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence. The limit can be changed with <tt>TCB.maxThreads</tt>.
      */
     public static final int maxThreads = 250;
 
+    /** The maximum number of started, non-destroyed TCB's. */
+    private static int threadLimit = maxThreads;
+    /** <tt>true</tt> if TCBs other than the first run in virtual threads. */
+    private static boolean useVirtualThreads = false;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -360,6 +396,17 @@ public final class TCB {
      * the first TCB is created, this vector is basically never empty.
      */
     private static Vector<TCB> runningThreads = new Vector<TCB>();
+
+    /**
+     * The TCB whose Java thread ought to be running. This is an entirely
+     * different condition from membership in <tt>runningThreads</tt>, which
+     * contains all TCB objects that have started and have not terminated.
+     * Exactly one Java thread may proceed at a time: the one bound to
+     * <tt>runningTCB</tt>. Passing control is a single write to this slot
+     * followed by an <tt>unpark()</tt>. When starting or destroying a TCB,
+     * this is temporarily a TCB other than the current TCB.
+     */
+    private static volatile TCB runningTCB = null;
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -379,23 +426,12 @@ public final class TCB {
      */
     private Thread javaThread = null;
 
-    /**
-     * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
-     * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
-     * when the associated Java thread ought to run ASAP. When starting or
-     * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
-     */
-    private boolean running = false;
-
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
      * <tt>waitForInterrupt()</tt> returns in the doomed TCB, <tt>yield()</tt>
      * will know that the current TCB is doomed.
      */
-    private boolean done = false;
+    private volatile boolean done = false;
     
     private KThread nachosThread = null;
     private boolean associated = false;
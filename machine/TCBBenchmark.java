@@ -0,0 +1,144 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many context switches per second each TCB handoff scheme
+ * achieves. Two Java threads pass control back and forth, as the two
+ * threads of <tt>KThread.selfTest()</tt> do, first using the monitor
+ * ping-pong that <tt>TCB</tt> used to use, and then using the single running
+ * slot with <tt>park()</tt>/<tt>unpark()</tt> that it uses now.
+ *
+ * <p>
+ * This runs outside of Nachos:
+ *
+ * <p><blockquote><pre>
+ * java nachos.machine.TCBBenchmark [switches]
+ * </pre></blockquote>
+ */
+public final class TCBBenchmark {
+    private TCBBenchmark() {
+    }
+
+    /**
+     * Run both benchmarks and print the results.
+     *
+     * @param	args	optionally, the number of switches to time.
+     */
+    public static void main(String[] args) throws InterruptedException {
+	int switches = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+	// warm up both schemes before timing them
+	run(new MonitorHandoff(), switches/10);
+	run(new SlotHandoff(), switches/10);
+
+	report("monitor wait/notify", run(new MonitorHandoff(), switches),
+	       switches);
+	report("running slot + park", run(new SlotHandoff(), switches),
+	       switches);
+    }
+
+    private static void report(String name, long nanos, int switches) {
+	System.out.println(name + ": " + switches + " switches in " +
+			   (nanos / 1000000) + " ms, " +
+			   (long) (switches * 1e9 / nanos) + " switches/s");
+    }
+
+    /**
+     * Ping-pong control between two threads until <i>switches</i> handoffs
+     * have happened, and return the elapsed time in nanoseconds.
+     */
+    private static long run(final Handoff handoff, final int switches)
+	throws InterruptedException {
+	Thread[] threads = new Thread[2];
+
+	for (int i=0; i<2; i++) {
+	    final int self = i;
+	    threads[i] = new Thread(new Runnable() {
+		public void run() {
+		    for (int n=self; n<switches; n+=2) {
+			handoff.waitFor(self);
+			handoff.switchTo(1-self);
+		    }
+		}
+	    });
+	}
+
+	handoff.bind(threads);
+
+	long start = System.nanoTime();
+	threads[0].start();
+	threads[1].start();
+	threads[0].join();
+	threads[1].join();
+	return System.nanoTime() - start;
+    }
+
+    private static abstract class Handoff {
+	void bind(Thread[] threads) {
+	    this.threads = threads;
+	}
+
+	/** Block until thread <i>self</i> may run. */
+	abstract void waitFor(int self);
+	/** Let thread <i>next</i> run instead of the calling thread. */
+	abstract void switchTo(int next);
+
+	Thread[] threads;
+    }
+
+    /**
+     * The old <tt>TCB</tt> scheme: a running flag per thread, guarded by a
+     * monitor per thread.
+     */
+    private static class MonitorHandoff extends Handoff {
+	void waitFor(int self) {
+	    Flag flag = flags[self];
+	    synchronized (flag) {
+		while (!flag.running) {
+		    try { flag.wait(); }
+		    catch (InterruptedException e) { }
+		}
+		flag.running = false;
+	    }
+	}
+
+	void switchTo(int next) {
+	    Flag flag = flags[next];
+	    synchronized (flag) {
+		flag.running = true;
+		flag.notify();
+	    }
+	}
+
+	private static class Flag {
+	    boolean running = false;
+	}
+
+	private Flag[] flags = { new Flag(), new Flag() };
+
+	{
+	    flags[0].running = true;
+	}
+    }
+
+    /**
+     * The current <tt>TCB</tt> scheme: a single volatile running slot, with
+     * <tt>park()</tt>/<tt>unpark()</tt>.
+     */
+    private static class SlotHandoff extends Handoff {
+	void waitFor(int self) {
+	    while (running != self)
+		LockSupport.park(this);
+	}
+
+	void switchTo(int next) {
+	    running = next;
+	    LockSupport.unpark(threads[next]);
+	}
+
+	private volatile int running = 0;
+    }
+}
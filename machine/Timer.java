@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * If <tt>Timer.tickless</tt> is <tt>true</tt> in <tt>nachos.conf</tt>, the
+ * timer does not interrupt periodically. Instead, the kernel programs each
+ * interrupt with <tt>setNextInterrupt()</tt>, and the timer only interrupts
+ * when it has been asked to.
  */
 public final class Timer {
     /**
@@ -37,7 +43,44 @@ public final class Timer {
 		}
 	    };
 
-	scheduleInterrupt();
+	tickless = Config.getBoolean("Timer.tickless", false);
+
+	if (!tickless)
+	    scheduleInterrupt();
+    }
+
+    /**
+     * Test whether this timer only interrupts when programmed to.
+     *
+     * @return	<tt>true</tt> if the timer is in tickless mode.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * Ask for a timer interrupt at the specified time. In tickless mode, the
+     * timer interrupts at the earliest time that has been asked for, and then
+     * forgets every request; the handler must ask for the next interrupt.
+     * Does nothing if the timer is not in tickless mode.
+     *
+     * @param	time	the time at which to interrupt. Times that have
+     *			already passed are treated as the next tick.
+     */
+    public void setNextInterrupt(long time) {
+	if (!tickless)
+	    return;
+
+	long now = getTime();
+	if (time <= now)
+	    time = now + 1;
+
+	if (time >= nextInterrupt)
+	    return;
+
+	// an interrupt asked for later is left pending, and ignored
+	nextInterrupt = time;
+	privilege.interrupt.schedule(time - now, "timer", timerInterrupt);
     }
 
     /**
@@ -60,7 +103,16 @@ public final class Timer {
     }
 
     private void timerInterrupt() {
-	scheduleInterrupt();
+	if (tickless) {
+	    // ignore interrupts that were asked for but superseded
+	    if (getTime() < nextInterrupt)
+		return;
+
+	    nextInterrupt = Long.MAX_VALUE;
+	}
+	else {
+	    scheduleInterrupt();
+	}
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -86,4 +138,8 @@ public final class Timer {
 
     private Privilege privilege;
     private Runnable handler = null;
+
+    private boolean tickless;
+    /** In tickless mode, the time of the next interrupt asked for. */
+    private long nextInterrupt = Long.MAX_VALUE;
 }
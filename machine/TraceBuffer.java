@@ -0,0 +1,96 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A fixed-size ring buffer of processor trace records. Each record holds the
+ * kind of access, the PC and instruction word that caused it, the virtual
+ * and physical address, and the value transferred. Records are stored as
+ * plain integers, so tracing does not allocate or format anything; once the
+ * buffer is full, each new record overwrites the oldest one.
+ *
+ * <p>
+ * The buffer is printed when the machine halts.
+ */
+final class TraceBuffer {
+    /**
+     * Allocate a new trace buffer.
+     *
+     * @param	capacity	the number of records to keep. Rounded up to
+     *				a power of two.
+     */
+    TraceBuffer(int capacity) {
+	Lib.assertTrue(capacity > 0 && capacity <= maxCapacity);
+
+	capacity = Integer.highestOneBit(capacity*2 - 1);
+
+	records = new int[capacity * recordSize];
+	mask = capacity - 1;
+    }
+
+    /**
+     * Append a record, overwriting the oldest record if the buffer is full.
+     *
+     * @param	kind		the kind of access; <tt>fetch</tt>,
+     *				<tt>read</tt>, or <tt>write</tt>.
+     * @param	size		the number of bytes accessed.
+     * @param	pc		the PC of the instruction.
+     * @param	instruction	the instruction word.
+     * @param	vaddr		the virtual address accessed.
+     * @param	paddr		the physical address accessed.
+     * @param	value		the value read or written.
+     */
+    void record(int kind, int size, int pc, int instruction, int vaddr,
+		int paddr, int value) {
+	int i = (int) (count++ & mask) * recordSize;
+
+	records[i+0] = kind;
+	records[i+1] = size;
+	records[i+2] = pc;
+	records[i+3] = instruction;
+	records[i+4] = vaddr;
+	records[i+5] = paddr;
+	records[i+6] = value;
+    }
+
+    /**
+     * Print the records in the buffer, oldest first.
+     */
+    void print() {
+	long first = Math.max(0, count - (mask+1));
+
+	System.out.println("Trace: " + count + " records, last " +
+			   (count - first) + " shown");
+
+	for (long n=first; n<count; n++) {
+	    int i = (int) (n & mask) * recordSize;
+	    int size = records[i+1];
+
+	    System.out.println(kindNames[records[i+0]] +
+			       " pc=0x" + Lib.toHexString(records[i+2]) +
+			       " inst=0x" + Lib.toHexString(records[i+3]) +
+			       " vaddr=0x" + Lib.toHexString(records[i+4]) +
+			       " paddr=0x" + Lib.toHexString(records[i+5]) +
+			       " value=0x" +
+			       Lib.toHexString(records[i+6], size*2));
+	}
+    }
+
+    /** An instruction fetch. */
+    static final int fetch = 0;
+    /** A load from memory. */
+    static final int read = 1;
+    /** A store to memory. */
+    static final int write = 2;
+
+    private static final String[] kindNames = {
+	"fetch", "read ", "write"
+    };
+
+    private static final int recordSize = 8;
+    private static final int maxCapacity = 0x1000000;
+
+    private int[] records;
+    private int mask;
+    private long count = 0;
+}
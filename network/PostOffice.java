@@ -11,24 +11,31 @@ import nachos.threads.*;
  *
  * <p>
  * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * from the network and to place them in the appropriate queues.
+ *
+ * <p>
+ * Each queue is a <tt>BoundedSynchList</tt> holding at most
+ * <tt>PostOffice.mailboxCapacity</tt> messages (set in <tt>nachos.conf</tt>,
+ * default 32), so a port whose receiver falls behind uses a fixed amount of
+ * memory. Mail that arrives for a full mailbox is dropped, as the network
+ * itself might have dropped it; it does not hold up mail for other ports.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
-     * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * Allocate a new post office, using an array of
+     * <tt>BoundedSynchList</tt>s. Register the interrupt handlers with the
+     * network hardware and start the "postal worker" thread.
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
-	sendLock = new Lock();
+	sendLock = new Lock("PostOffice send");
 
-	queues = new SynchList[MailMessage.portLimit];
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 32);
+
+	queues = new BoundedSynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedSynchList(capacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -66,6 +73,56 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve the messages waiting on the specified port, waiting until
+     * there is at least one.
+     *
+     * @param	port	the port on which to wait for messages.
+     * @param	batch	the array to store the messages in, in the order they
+     *			arrived.
+     *
+     * @return	the number of messages received, at least 1.
+     */
+    public int receive(int port, MailMessage[] batch) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+	Lib.assertTrue(batch.length > 0);
+
+	Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+	batch[0] = (MailMessage) queues[port].removeFirst();
+	int count = 1 + queues[port].drainTo(batch, 1, batch.length-1);
+
+	if (Lib.test(dbgNet)) {
+	    for (int i=0; i<count; i++)
+		System.out.println("got mail on port " + port + ": " + batch[i]);
+	}
+
+	return count;
+    }
+
+    /**
+     * Retrieve a message on the specified port if one is waiting.
+     *
+     * @param	port	the port to check for a message.
+     *
+     * @return	the message received, or <tt>null</tt> if none is waiting.
+     */
+    public MailMessage poll(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return (MailMessage) queues[port].poll();
+    }
+
+    /**
+     * Return the number of messages dropped so far because their mailbox was
+     * full.
+     *
+     * @return	the number of messages dropped.
+     */
+    public long getNumDropped() {
+	return numDropped;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -88,8 +145,13 @@ public class PostOffice {
 		System.out.println("delivering mail to port " + mail.dstPort
 				   + ": " + mail);
 
-	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    // atomically add message to the mailbox and wake a waiting thread,
+	    // or drop it if the mailbox is full
+	    if (!queues[mail.dstPort].offer(mail)) {
+		numDropped++;
+		Lib.debug(dbgNet, "mailbox " + mail.dstPort + " full, dropped "
+			  + mail);
+	    }
 	}
     }
 
@@ -125,7 +187,9 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BoundedSynchList[] queues;
+    /** The number of messages dropped because their mailbox was full. */
+    private long numDropped = 0;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
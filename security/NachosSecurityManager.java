@@ -122,6 +122,27 @@ public class NachosSecurityManager extends SecurityManager {
 	return (privileged == Thread.currentThread());
     }
 
+    /**
+     * Test whether the class loader being created is the one that
+     * <tt>MipsCompiler</tt> defines compiled blocks with. The first frame on
+     * the stack that is not part of the permission check is the constructor
+     * of the new loader.
+     */
+    private boolean isCreatingBlockLoader() {
+	Class<?>[] context = getClassContext();
+
+	for (int i=0; i<context.length; i++) {
+	    if (context[i] == NachosSecurityManager.class ||
+		context[i] == SecurityManager.class ||
+		context[i] == ClassLoader.class)
+		continue;
+
+	    return context[i].getName().equals(blockLoaderName);
+	}
+
+	return false;
+    }
+
     private void doPrivileged(final Runnable action) {
 	doPrivileged(new PrivilegedAction() {
 	    public Object run() { action.run(); return null; }
@@ -178,8 +199,9 @@ public class NachosSecurityManager extends SecurityManager {
 	
 	// some permissions are strictly forbidden
 	if (perm instanceof RuntimePermission) {
-	    // no creating class loaders
-	    if (name.equals("createClassLoader"))
+	    // no creating class loaders, except the machine's compiler's own
+	    if (name.equals("createClassLoader") &&
+		!(isPrivileged() && isCreatingBlockLoader()))
 		no(perm);
 	}
 	
@@ -314,5 +336,8 @@ public class NachosSecurityManager extends SecurityManager {
     private Thread privileged = null;
     private int privilegeCount = 0;
     
+    private static final String blockLoaderName =
+	"nachos.machine.MipsCompiler$BlockLoader";
+
     private static final char dbgSecurity = 'S';
 }
@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by a number of user instructions at
+	 * once, without invoking any interrupt handlers. The caller must make
+	 * sure no interrupt becomes due in the meantime.
+	 *
+	 * @param	instructions	the number of MIPS user instructions
+	 *				executed.
+	 */
+	public void tickUser(int instructions);
+
+	/**
+	 * Return the number of ticks until the next pending interrupt is due.
+	 *
+	 * @return	the number of ticks until the next interrupt is due, or
+	 *		<tt>0</tt> if every tick must be simulated separately.
+	 */
+	public long timeUntilNextInterrupt();
     }
 
     /**
@@ -1,9 +1,6 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
-import nachos.threads.Lock;		// NEW waitLock - P1 T1.3
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
@@ -21,13 +18,8 @@ public class Alarm {
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
-	
-	// NEW for T1.3: Alarm class
-	waitLock = new Lock();				// init lock for waitUntil()
-	this.waitingQueue = new LinkedList<KThread>();	// init queue for waiting threads
-	
-	
-	
+
+	tickless = Machine.timer().isTickless();
     }
 
     /**
@@ -35,26 +27,57 @@ public class Alarm {
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
      * that should be run.
+     *
+     * <p>
+     * Sleeping threads are kept in a min-heap ordered by due time, so only
+     * the threads that are actually due are touched.
+     *
+     * <p>
+     * A thread that times out in <tt>waitInQueue()</tt> is taken out of its
+     * wait queue before it is woken.
+     *
+     * <p>
+     * If the timer is tickless, this handler asks for the next interrupt: at
+     * the time the next sleeping thread is due, or after a time slice if
+     * more than one thread can run.
      */
     public void timerInterrupt() {
-	// NEW T1.3: check if threads are due on waitingQueue
-	
-	// NEW T1.3: disable interrupts to place on ready()
-	waitLock.acquire();				// grab lock for each thread
-	
-	// NEW T1.3: check if threads are due on waitingQueue
-	if(!waitingQueue.isEmpty()) {
-	    for(KThread it : waitingQueue) {		// "look" through queue
-		// check dueTime against dynamic CPU clock time and init case == -1
-		if(it.getDueTime() <= Machine.timer().getTime() && it.getDueTime() > -1) {
-		    it.ready();				// flag for readyQueue
-		    waitingQueue.remove(it);		// remove from waitingQueue
-		} 					// else proceed
-	    }						// till all threads are checked
-	} 						// else no waiting threads at currentTime
-	
-	// NEW T1.3: check if threads are due on waitingQueue
-	waitLock.release();
+	long time = Machine.timer().getTime();
+
+	while (numSleeping > 0 && dueTimes[0] <= time) {
+	    KThread thread = removeAt(0);
+	    if (thread.waitingIn != null)
+		thread.waitingIn.remove(thread);
+	    thread.ready();
+	}
+
+	if (tickless) {
+	    if (numSleeping > 0)
+		Machine.timer().setNextInterrupt(dueTimes[0]);
+	    if (KThread.numRunnableThreads() > 1)
+		Machine.timer().setNextInterrupt(time + Stats.TimerTicks);
+	}
+
+	KThread.yield();
+    }
+
+    /**
+     * Called by <tt>KThread.ready()</tt> when a thread that was not running
+     * becomes ready. If the thread was woken before its time in
+     * <tt>waitInQueue()</tt> ran out, forget its due time. If the timer is
+     * tickless and more than one thread can now run, make sure a time slice
+     * is programmed.
+     *
+     * @param	thread	the thread that became ready.
+     */
+    void threadReady(KThread thread) {
+	if (thread.getDueTime() >= 0)
+	    removeAt(thread.alarmIndex);
+
+	if (tickless && KThread.numRunnableThreads() > 1) {
+	    Machine.timer().setNextInterrupt(Machine.timer().getTime() +
+					     Stats.TimerTicks);
+	}
     }
 
     /**
@@ -72,25 +95,182 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// acquire lock to put threads to sleep
-	waitLock.acquire();
-	
-	long dueTime = (Machine.timer().getTime() + x);
-	
-	// NEW T1.3: update thread's due time -- NEED Get()/Set() methods
-	KThread.currentThread().setDueTime(dueTime);
-	
-	// NEW for Task 1.3: put thread onto waitingQueue
-	if(dueTime >= Machine.timer().getTime()) {	// handle due threads
-	    waitingQueue.add(KThread.currentThread());
-	    KThread.sleep();
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	sleepUntil(Machine.timer().getTime() + x);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Put the current thread to sleep in the specified wait queue until
+     * another thread takes it out of the queue and wakes it, or until at
+     * least <i>x</i> ticks have passed, whichever comes first. If the time
+     * passes first, the thread is taken out of the queue when it is woken.
+     * Must be called with interrupts disabled.
+     *
+     * <p>
+     * Like a condition variable, this can return before the event the caller
+     * is waiting for has happened, so callers check again in a loop.
+     *
+     * @param	queue	the queue to wait in.
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	the number of ticks left to wait; 0 or less if the time has
+     *		passed.
+     */
+    public long waitInQueue(WaitQueue queue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (x <= 0)
+	    return 0;
+
+	long dueTime = Machine.timer().getTime() + x;
+
+	queue.add(KThread.currentThread());
+	sleepUntil(dueTime);
+
+	return dueTime - Machine.timer().getTime();
+    }
+
+    /**
+     * Put the current thread in the heap of sleeping threads, and sleep.
+     */
+    private void sleepUntil(long dueTime) {
+	KThread thread = KThread.currentThread();
+	thread.setDueTime(dueTime);
+
+	if (numSleeping == sleeping.length)
+	    grow();
+
+	siftUp(numSleeping++, thread, dueTime, numWaits++);
+
+	if (tickless)
+	    Machine.timer().setNextInterrupt(dueTime);
+
+	KThread.sleep();
+    }
+
+    /**
+     * Remove and return the sleeping thread at heap index <i>i</i>.
+     */
+    private KThread removeAt(int i) {
+	KThread removed = sleeping[i];
+
+	int last = --numSleeping;
+	KThread thread = sleeping[last];
+	long dueTime = dueTimes[last];
+	long order = orders[last];
+	sleeping[last] = null;
+
+	if (i < numSleeping) {
+	    if (i > 0 && before(dueTime, order, (i-1) / 2))
+		siftUp(i, thread, dueTime, order);
+	    else
+		siftDown(i, thread, dueTime, order);
+	}
+
+	removed.setDueTime(-1);
+	removed.alarmIndex = -1;
+	return removed;
+    }
+
+    /**
+     * Place a thread at heap index <i>i</i> or above, moving threads that
+     * are due later down.
+     */
+    private void siftUp(int i, KThread thread, long dueTime, long order) {
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!before(dueTime, order, parent))
+		break;
+
+	    move(parent, i);
+	    i = parent;
 	}
-	// no more due threads, end of critical section
-	waitLock.release();
 
+	set(i, thread, dueTime, order);
     }
-    // NEW Task 1.3: Alarm Class
-    private Lock waitLock;				// acquire lock in waitUntil()
-    private LinkedList<KThread> waitingQueue;		// hold waitUntil() threads
 
+    /**
+     * Place a thread at heap index <i>i</i> or below, moving threads that
+     * are due earlier up.
+     */
+    private void siftDown(int i, KThread thread, long dueTime, long order) {
+	while (true) {
+	    int child = i*2 + 1;
+	    if (child >= numSleeping)
+		break;
+
+	    if (child+1 < numSleeping &&
+		before(dueTimes[child+1], orders[child+1], child))
+		child++;
+
+	    if (!before(dueTimes[child], orders[child], dueTime, order))
+		break;
+
+	    move(child, i);
+	    i = child;
+	}
+
+	set(i, thread, dueTime, order);
+    }
+
+    /**
+     * Return <tt>true</tt> if a thread due at <i>dueTime</i> that started
+     * waiting in the specified order wakes before the thread at heap index
+     * <i>j</i>.
+     */
+    private boolean before(long dueTime, long order, int j) {
+	return before(dueTime, order, dueTimes[j], orders[j]);
+    }
+
+    private static boolean before(long dueTime1, long order1,
+				  long dueTime2, long order2) {
+	return (dueTime1 < dueTime2 ||
+		(dueTime1 == dueTime2 && order1 < order2));
+    }
+
+    private void move(int from, int to) {
+	set(to, sleeping[from], dueTimes[from], orders[from]);
+    }
+
+    private void set(int i, KThread thread, long dueTime, long order) {
+	thread.alarmIndex = i;
+	sleeping[i] = thread;
+	dueTimes[i] = dueTime;
+	orders[i] = order;
+    }
+
+    private void grow() {
+	int size = sleeping.length * 2;
+
+	KThread[] newSleeping = new KThread[size];
+	long[] newDueTimes = new long[size];
+	long[] newOrders = new long[size];
+
+	System.arraycopy(sleeping, 0, newSleeping, 0, numSleeping);
+	System.arraycopy(dueTimes, 0, newDueTimes, 0, numSleeping);
+	System.arraycopy(orders, 0, newOrders, 0, numSleeping);
+
+	sleeping = newSleeping;
+	dueTimes = newDueTimes;
+	orders = newOrders;
+    }
+
+    /**
+     * The sleeping threads, as a binary min-heap ordered by due time and then
+     * by the order in which they went to sleep. The due times and orders are
+     * kept in arrays parallel to the threads.
+     */
+    private KThread[] sleeping = new KThread[16];
+    private long[] dueTimes = new long[16];
+    private long[] orders = new long[16];
+    private int numSleeping = 0;
+    private long numWaits = 0;
+
+    /** <tt>true</tt> if the timer only interrupts when asked to. */
+    private boolean tickless;
 }
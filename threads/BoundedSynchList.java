@@ -0,0 +1,280 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue with a fixed capacity, kept in a circular array. Like
+ * <tt>SynchList</tt>, <tt>add()</tt> and <tt>removeFirst()</tt> block until
+ * they can go ahead. In addition, <tt>offer()</tt> and <tt>poll()</tt> either
+ * give up at once or wait for at most a given number of ticks, so that a
+ * producer can apply back-pressure instead of blocking; and
+ * <tt>drainTo()</tt> removes many objects at once.
+ *
+ * <p>
+ * Adding and removing objects never allocates. Threads that are waiting are
+ * kept in wait queues, and each object added or removed wakes at most one of
+ * them. Interrupts are disabled for mutual exclusion, as in
+ * <tt>Semaphore</tt>.
+ */
+public class BoundedSynchList {
+    /**
+     * Allocate a new synchronized queue.
+     *
+     * @param	capacity	the most objects the queue can hold.
+     */
+    public BoundedSynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	items = new Object[capacity];
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking until there
+     * is room if necessary. If another thread is waiting to remove an object,
+     * it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(Object o) {
+	Lib.assertTrue(o != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (count == items.length) {
+	    notFull.add(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	enqueue(o);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added; <tt>false</tt> if the
+     *		queue is full.
+     */
+    public boolean offer(Object o) {
+	return offer(o, 0);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, waiting at most
+     * <i>timeout</i> ticks for there to be room.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @param	timeout	the most ticks to wait.
+     * @return	<tt>true</tt> if the object was added; <tt>false</tt> if the
+     *		queue stayed full.
+     */
+    public boolean offer(Object o, long timeout) {
+	Lib.assertTrue(o != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (count == items.length && timeout > 0)
+	    timeout = ThreadedKernel.alarm.waitInQueue(notFull, timeout);
+
+	boolean added = (count < items.length);
+	if (added)
+	    enqueue(o);
+
+	Machine.interrupt().restore(intStatus);
+
+	return added;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public Object removeFirst() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (count == 0) {
+	    notEmpty.add(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Object o = dequeue();
+
+	Machine.interrupt().restore(intStatus);
+
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if there is one.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue is empty.
+     */
+    public Object poll() {
+	return poll(0);
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>timeout</i> ticks for one to be added.
+     *
+     * @param	timeout	the most ticks to wait.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue stayed empty.
+     */
+    public Object poll(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (count == 0 && timeout > 0)
+	    timeout = ThreadedKernel.alarm.waitInQueue(notEmpty, timeout);
+
+	Object o = (count > 0) ? dequeue() : null;
+
+	Machine.interrupt().restore(intStatus);
+
+	return o;
+    }
+
+    /**
+     * Remove as many objects as are in the queue, up to the length of
+     * <i>batch</i>, without blocking.
+     *
+     * @param	batch	the array to store the removed objects in, in order.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Object[] batch) {
+	return drainTo(batch, 0, batch.length);
+    }
+
+    /**
+     * Remove as many objects as are in the queue, up to <i>length</i>,
+     * without blocking. The objects are stored in <i>batch</i> starting at
+     * <i>offset</i>.
+     *
+     * @param	batch	the array to store the removed objects in, in order.
+     * @param	offset	the index to store the first object at.
+     * @param	length	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Object[] batch, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= batch.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int amount = Math.min(length, count);
+	for (int i=0; i<amount; i++)
+	    batch[offset + i] = dequeue();
+
+	Machine.interrupt().restore(intStatus);
+
+	return amount;
+    }
+
+    /**
+     * Return the number of objects in the queue.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Return the most objects the queue can hold.
+     *
+     * @return	the capacity of the queue.
+     */
+    public int capacity() {
+	return items.length;
+    }
+
+    /**
+     * Store an object at the tail, and wake a thread waiting to remove one.
+     */
+    private void enqueue(Object o) {
+	int tail = head + count;
+	if (tail >= items.length)
+	    tail -= items.length;
+
+	items[tail] = o;
+	count++;
+
+	KThread thread = notEmpty.removeFirst();
+	if (thread != null)
+	    thread.ready();
+    }
+
+    /**
+     * Take the object at the head, and wake a thread waiting to add one.
+     */
+    private Object dequeue() {
+	Object o = items[head];
+	items[head] = null;
+
+	if (++head == items.length)
+	    head = 0;
+	count--;
+
+	KThread thread = notFull.removeFirst();
+	if (thread != null)
+	    thread.ready();
+
+	return o;
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(BoundedSynchList ping, BoundedSynchList pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    for (int i=0; i<10; i++)
+		pong.add(ping.removeFirst());
+	}
+
+	private BoundedSynchList ping;
+	private BoundedSynchList pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	BoundedSynchList ping = new BoundedSynchList(2);
+	BoundedSynchList pong = new BoundedSynchList(2);
+
+	new KThread(new PingTest(ping, pong)).setName("bounded ping").fork();
+
+	Object[] batch = new Object[4];
+	for (int i=0; i<10; i+=2) {
+	    Integer o1 = Integer.valueOf(i), o2 = Integer.valueOf(i+1);
+	    ping.add(o1);
+	    ping.add(o2);
+	    Lib.assertTrue(pong.removeFirst() == o1);
+
+	    int amount = pong.drainTo(batch);
+	    if (amount == 0)
+		batch[0] = pong.removeFirst();
+	    Lib.assertTrue(batch[0] == o2);
+	}
+
+	Lib.assertTrue(ping.poll() == null && pong.poll(100) == null);
+	Lib.assertTrue(ping.offer(batch) && ping.offer(batch) &&
+		       !ping.offer(batch, 100));
+    }
+
+    /** The objects in the queue, starting at <i>head</i>. */
+    private Object[] items;
+    private int head = 0;
+    private int count = 0;
+
+    /** Threads waiting for the queue to be non-empty, or non-full. */
+    private WaitQueue notEmpty = new WaitQueue();
+    private WaitQueue notFull = new WaitQueue();
+}
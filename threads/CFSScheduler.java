@@ -0,0 +1,318 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A completely fair scheduler. Each thread accumulates <i>virtual runtime</i>:
+ * the ticks it has spent running, scaled down by a weight that grows with its
+ * priority. The next thread to be dequeued is always the waiting thread with
+ * the least virtual runtime, so over time every thread receives processor
+ * time in proportion to its weight. Threads with equal virtual runtime are
+ * dequeued in the order in which they arrived.
+ *
+ * <p>
+ * Priorities range from <tt>PriorityScheduler.priorityMinimum</tt> to
+ * <tt>PriorityScheduler.priorityMaximum</tt>, and each priority step is worth
+ * about 25% more processor time than the step below.
+ *
+ * <p>
+ * A thread that has been blocked for a long time would otherwise have far less
+ * virtual runtime than the threads that kept running, and would monopolize
+ * the processor when it woke up. Instead, a thread entering a queue is given
+ * at least the virtual runtime of the last thread dequeued from that queue,
+ * less a small credit (<tt>CFSScheduler.sleeperCredit</tt> in
+ * <tt>nachos.conf</tt>, in ticks, by default one timer interval). This bounds
+ * how long any waiting thread can be kept from running.
+ *
+ * <p>
+ * Waiting threads are kept in a binary min-heap, so every operation takes
+ * <i>O(log n)</i> time. Like a round-robin scheduler, this scheduler does not
+ * transfer priority.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public CFSScheduler() {
+	int credit = Config.getInteger("CFSScheduler.sleeperCredit",
+				       Stats.TimerTicks);
+	Lib.assertTrue(credit >= 0);
+
+	sleeperCredit = (long) credit * weightDefault;
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Completely fair schedulers do
+     *					not transfer priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum &&
+		   priority <= PriorityScheduler.priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != PriorityScheduler.priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != PriorityScheduler.priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread, in units of
+     * 1/1024 tick. A thread at the default priority accumulates 1024 units
+     * per tick. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to get the virtual runtime of.
+     * @return	the thread's virtual runtime.
+     */
+    public long getVirtualRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).vruntime;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the current thread for the ticks it has run since it was last
+     * charged. Called by every queue operation.
+     */
+    protected void chargeCurrentThread() {
+	long now = Machine.timer().getTime();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	long ran = now - state.lastCharged;
+	state.lastCharged = now;
+
+	state.vruntime += ran * weightDefault * weightDefault /
+	    weights[state.priority];
+    }
+
+    private class FairQueue extends ThreadQueue {
+	/**
+	 * Add a thread to the queue, no further ahead than the sleeper credit
+	 * allows.
+	 *
+	 * @param	thread	the thread to add to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    ThreadState state = getThreadState(thread);
+	    state.vruntime = Math.max(state.vruntime,
+				      minVruntime - sleeperCredit);
+	    state.arrival = numArrivals++;
+
+	    if (size == heap.length) {
+		ThreadState[] grown = new ThreadState[size*2];
+		System.arraycopy(heap, 0, grown, 0, size);
+		heap = grown;
+	    }
+
+	    siftUp(size++, state);
+	}
+
+	/**
+	 * Remove the thread with the least virtual runtime.
+	 *
+	 * @return	the thread with the least virtual runtime, or
+	 *		<tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    if (size == 0)
+		return null;
+
+	    ThreadState first = heap[0];
+
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+	    if (size > 0)
+		siftDown(0, last);
+
+	    if (first.vruntime > minVruntime)
+		minVruntime = first.vruntime;
+
+	    // if this is the ready queue, the thread is about to run
+	    first.lastCharged = Machine.timer().getTime();
+
+	    return first.thread;
+	}
+
+	/**
+	 * The specified thread has received access without waiting. Nothing
+	 * needs to be charged for this.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue, in heap order.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].vruntime + ") ");
+	    System.out.println();
+	}
+
+	/**
+	 * Place <i>state</i> at heap index <i>i</i> or above, moving later
+	 * threads down.
+	 */
+	private void siftUp(int i, ThreadState state) {
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!state.before(heap[parent]))
+		    break;
+
+		heap[i] = heap[parent];
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	}
+
+	/**
+	 * Place <i>state</i> at heap index <i>i</i> or below, moving earlier
+	 * threads up.
+	 */
+	private void siftDown(int i, ThreadState state) {
+	    while (true) {
+		int child = i*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && heap[child+1].before(heap[child]))
+		    child++;
+
+		if (!heap[child].before(state))
+		    break;
+
+		heap[i] = heap[child];
+		i = child;
+	    }
+
+	    heap[i] = state;
+	}
+
+	/** The waiting threads, as a binary min-heap. */
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	/** The greatest virtual runtime dequeued so far. */
+	private long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread should be dequeued before the
+	 * specified thread.
+	 */
+	boolean before(ThreadState state) {
+	    return (vruntime < state.vruntime ||
+		    (vruntime == state.vruntime && arrival < state.arrival));
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = PriorityScheduler.priorityDefault;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+	/** The time up to which the thread has been charged. */
+	protected long lastCharged = Machine.timer().getTime();
+	/** The order in which the thread last entered a queue. */
+	protected long arrival;
+    }
+
+    /** The weight of a thread at the default priority. */
+    private static final int weightDefault = 1024;
+
+    /**
+     * The weight of each priority. Each step is worth about 1.25 times the
+     * step below, and the default priority has weight
+     * <tt>weightDefault</tt>.
+     */
+    private static final int[] weights = {
+	820, 1024, 1277, 1586, 1991, 2501, 3121, 3906
+    };
+
+    /** The sleeper credit, in virtual runtime units. */
+    private long sleeperCredit;
+    private long numArrivals = 0;
+}
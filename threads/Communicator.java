@@ -8,6 +8,13 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * Besides single words, speakers and listeners can pass arrays of words. A
+ * batch is copied straight from the speaker's array into the listener's, so
+ * many words pass for each wakeup. Waiting speakers and waiting listeners are
+ * each paired off in the order they arrived, and only the threads that are
+ * paired off are woken.
  */
 public class Communicator {
     /**
@@ -27,6 +34,59 @@ public class Communicator {
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
+	speak(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Transfer every word in <i>words</i> to listeners, in order. The words
+     * may be split among several listeners. Does not return until every word
+     * has been received.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	speak(words, 0, words.length);
+    }
+
+    /**
+     * Transfer <i>length</i> words from <i>words</i>, starting at
+     * <i>offset</i>, to listeners, in order. Does not return until every word
+     * has been received.
+     *
+     * @param	words	the array holding the integers to transfer.
+     * @param	offset	the index of the first integer to transfer.
+     * @param	length	the number of integers to transfer.
+     */
+    public void speak(int[] words, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset + length <= words.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int pos = offset, end = offset + length;
+
+	// fill the waiting listeners, first come first served
+	while (pos < end && firstListener != null) {
+	    Waiter listener = removeFirst(false);
+
+	    int amount = Math.min(end - pos, listener.end - listener.pos);
+	    System.arraycopy(words, pos, listener.words, listener.pos, amount);
+	    pos += amount;
+	    listener.pos += amount;
+
+	    listener.thread.ready();
+	}
+
+	// wait for listeners to take the rest
+	if (pos < end) {
+	    Waiter speaker = new Waiter(words, pos, end);
+	    append(speaker, true);
+	    KThread.sleep();
+
+	    Lib.assertTrue(speaker.pos == end);
+	}
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -34,8 +94,186 @@ public class Communicator {
      * the <i>word</i> that thread passed to <tt>speak()</tt>.
      *
      * @return	the integer transferred.
-     */    
+     */
     public int listen() {
-	return 0;
+	int[] word = new int[1];
+	listen(word, 0, 1);
+	return word[0];
     }
+
+    /**
+     * Wait for at least one word to be spoken through this communicator, and
+     * then receive as many words as are available, up to the length of
+     * <i>buffer</i>.
+     *
+     * @param	buffer	the array to receive the integers in.
+     * @return	the number of integers received, at least 1.
+     */
+    public int listen(int[] buffer) {
+	return listen(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Wait for at least one word to be spoken through this communicator, and
+     * then receive as many words as are available, up to <i>length</i>. The
+     * words are stored in <i>buffer</i>, starting at <i>offset</i>.
+     *
+     * @param	buffer	the array to receive the integers in.
+     * @param	offset	the index to store the first integer at.
+     * @param	length	the largest number of integers to receive.
+     * @return	the number of integers received, at least 1.
+     */
+    public int listen(int[] buffer, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 &&
+		       offset + length <= buffer.length);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	int pos = offset, end = offset + length;
+
+	// drain the waiting speakers, first come first served
+	while (pos < end && firstSpeaker != null) {
+	    Waiter speaker = firstSpeaker;
+
+	    int amount = Math.min(end - pos, speaker.end - speaker.pos);
+	    System.arraycopy(speaker.words, speaker.pos, buffer, pos, amount);
+	    pos += amount;
+	    speaker.pos += amount;
+
+	    // a speaker is done once all of its words have been received
+	    if (speaker.pos == speaker.end) {
+		removeFirst(true);
+		speaker.thread.ready();
+	    }
+	}
+
+	// wait for a speaker to fill in at least one word
+	if (pos == offset) {
+	    Waiter listener = new Waiter(buffer, pos, end);
+	    append(listener, false);
+	    KThread.sleep();
+
+	    pos = listener.pos;
+	    Lib.assertTrue(pos > offset);
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return pos - offset;
+    }
+
+    /**
+     * Add a waiter for the current thread to the end of the speaker or
+     * listener list.
+     */
+    private void append(Waiter waiter, boolean speaker) {
+	if (speaker) {
+	    Lib.assertTrue(firstListener == null);
+	    if (lastSpeaker == null)
+		firstSpeaker = waiter;
+	    else
+		lastSpeaker.next = waiter;
+	    lastSpeaker = waiter;
+	}
+	else {
+	    Lib.assertTrue(firstSpeaker == null);
+	    if (lastListener == null)
+		firstListener = waiter;
+	    else
+		lastListener.next = waiter;
+	    lastListener = waiter;
+	}
+    }
+
+    /**
+     * Remove the first waiter from the speaker or listener list.
+     */
+    private Waiter removeFirst(boolean speaker) {
+	Waiter waiter;
+
+	if (speaker) {
+	    waiter = firstSpeaker;
+	    firstSpeaker = waiter.next;
+	    if (firstSpeaker == null)
+		lastSpeaker = null;
+	}
+	else {
+	    waiter = firstListener;
+	    firstListener = waiter.next;
+	    if (firstListener == null)
+		lastListener = null;
+	}
+
+	waiter.next = null;
+	return waiter;
+    }
+
+    /**
+     * A waiting speaker or listener, with the part of its array that is left
+     * to transfer.
+     */
+    private static class Waiter {
+	Waiter(int[] words, int pos, int end) {
+	    this.thread = KThread.currentThread();
+	    this.words = words;
+	    this.pos = pos;
+	    this.end = end;
+	}
+
+	KThread thread;
+	int[] words;
+	/** The next index to transfer, and the index after the last. */
+	int pos, end;
+	Waiter next = null;
+    }
+
+    private static class Listener implements Runnable {
+	Listener(Communicator comm, int total) {
+	    this.comm = comm;
+	    this.total = total;
+	}
+
+	public void run() {
+	    int[] buffer = new int[7];
+	    int expected = 0;
+
+	    while (expected < total) {
+		int amount = comm.listen(buffer);
+		for (int i=0; i<amount; i++)
+		    Lib.assertTrue(buffer[i] == expected++);
+	    }
+	    Lib.assertTrue(expected == total);
+	}
+
+	private Communicator comm;
+	private int total;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	Communicator comm = new Communicator();
+
+	KThread listener = new KThread(new Listener(comm, 60));
+	listener.setName("listener").fork();
+
+	int[] words = new int[25];
+	int next = 0;
+
+	// single words, then batches larger and smaller than the listener's
+	for (int i=0; i<10; i++)
+	    comm.speak(next++);
+	for (int i=0; i<2; i++) {
+	    for (int j=0; j<words.length; j++)
+		words[j] = next++;
+	    comm.speak(words);
+	}
+
+	listener.join();
+    }
+
+    /** The waiting speakers and listeners, in the order they arrived. */
+    private Waiter firstSpeaker = null, lastSpeaker = null;
+    private Waiter firstListener = null, lastListener = null;
 }
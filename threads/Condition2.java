@@ -2,9 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-/* wire LinkedList structure for waitQueue */
-import java.util.LinkedList;
-
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
@@ -26,8 +23,8 @@ public class Condition2 {
     public Condition2(Lock conditionLock) {
 	this.conditionLock = conditionLock;
 	
-	/* initialize waitQueue using LinkedList constructor */
-	waitQueue = new LinkedList<KThread>();
+	/* waiting threads are linked through the threads themselves */
+	waitQueue = new WaitQueue();
 	
     }
 
@@ -49,7 +46,12 @@ public class Condition2 {
 	    conditionLock.release();
 	
 	    /* put current thread to sleep */
+	    long waitStart = Machine.timer().getTime();
 	    KThread.sleep();
+
+	    if (ThreadedKernel.schedulingStats != null)
+		ThreadedKernel.schedulingStats.conditionWait(
+		    Machine.timer().getTime() - waitStart);
 	
         /* Re-acquire lock*/
 	    conditionLock.acquire();
@@ -106,6 +108,6 @@ public class Condition2 {
 
     private Lock conditionLock;
     
-    /* using LinkedList for isEmpty() condition */
-    private LinkedList<KThread> waitQueue;
+    /* intrusive FIFO, so sleeping never allocates */
+    private WaitQueue waitQueue;
 }
@@ -0,0 +1,461 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class layered above
+ * the completely fair class of <tt>CFSScheduler</tt>.
+ *
+ * <p>
+ * A thread joins the real-time class by declaring a CPU budget and a period
+ * with <tt>setDeadline()</tt>. Each period starts a new job, whose deadline is
+ * the end of the period; the thread calls <tt>waitForNextPeriod()</tt> when
+ * the job is done. Waiting real-time threads are always dequeued before other
+ * threads, earliest deadline first. All other threads are scheduled by the
+ * fair class.
+ *
+ * <p>
+ * A thread is only admitted to the real-time class if the total utilization
+ * (the sum of budget/period over all real-time threads) stays within
+ * <tt>EDFScheduler.maxUtilization</tt> in <tt>nachos.conf</tt> (default 0.9).
+ * Under this bound EDF meets every deadline, as long as each job stays within
+ * its budget. A job that overruns its budget is scheduled by the fair class
+ * until its next period starts, so that it cannot take time promised to the
+ * other real-time threads.
+ *
+ * <p>
+ * The scheduler counts completed jobs and missed deadlines, and records the
+ * worst lateness of any job. If <tt>ThreadedKernel.schedulingStats</tt> is
+ * set, these are printed when Nachos halts.
+ *
+ * <p>
+ * No kernel thread in this tree uses the real-time class; it is there for
+ * threads with periodic work, which must call <tt>setDeadline()</tt>
+ * themselves. Until one does, this scheduler behaves like
+ * <tt>CFSScheduler</tt>.
+ */
+public class EDFScheduler extends CFSScheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+	maxUtilization = Config.getDouble("EDFScheduler.maxUtilization", 0.9);
+	Lib.assertTrue(maxUtilization > 0 && maxUtilization <= 1);
+    }
+
+    /**
+     * Allocate a new thread queue that dequeues real-time threads by
+     * deadline, and other threads as a fair queue does.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new deadline thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(super.newThreadQueue(transferPriority));
+    }
+
+    /**
+     * Move the specified thread into the real-time class, with a budget of
+     * <i>budget</i> ticks in every period of <i>period</i> ticks. The first
+     * period starts now. The thread must not be waiting in a queue. Must be
+     * called with interrupts disabled.
+     *
+     * @param	thread	the thread that has a deadline.
+     * @param	budget	the number of ticks the thread needs per period.
+     * @param	period	the length of a period, in ticks.
+     * @return	<tt>true</tt> if the thread was admitted; <tt>false</tt> if
+     *		the real-time class does not have enough spare capacity, in
+     *		which case nothing changes.
+     */
+    public boolean setDeadline(KThread thread, long budget, long period) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(budget > 0 && budget <= period);
+
+	DeadlineState state = getDeadlineState(thread);
+
+	double remaining = utilization - state.utilization();
+	double needed = (double) budget / period;
+	if (remaining + needed > maxUtilization) {
+	    Lib.debug(dbgEDF, "Rejecting " + thread + ": utilization " +
+		      (remaining + needed));
+	    return false;
+	}
+
+	utilization = remaining + needed;
+
+	long now = Machine.timer().getTime();
+
+	state.budget = budget;
+	state.period = period;
+	state.release = now;
+	state.deadline = now + period;
+	state.jobDeadline = state.deadline;
+	state.used = 0;
+
+	Lib.debug(dbgEDF, "Admitting " + thread + ": budget " + budget +
+		  ", period " + period + ", utilization " + utilization);
+	return true;
+    }
+
+    /**
+     * Move the specified thread back into the fair class, releasing its
+     * share of the real-time capacity. If the thread is waiting in a queue
+     * as a real-time thread, it moves to the fair part of that queue. Must be
+     * called with interrupts disabled.
+     *
+     * @param	thread	the thread that no longer has a deadline.
+     */
+    public void clearDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DeadlineState state = getDeadlineState(thread);
+
+	utilization -= state.utilization();
+	if (utilization < 0)
+	    utilization = 0;
+
+	state.period = 0;
+
+	if (state.waitingIn != null)
+	    state.waitingIn.requeue(state);
+    }
+
+    /**
+     * Finish the current job of the current thread, which must be in the
+     * real-time class, and sleep until its next period starts. If the job
+     * finished after its deadline, count a missed deadline.
+     */
+    public void waitForNextPeriod() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	DeadlineState state = getDeadlineState(thread);
+	Lib.assertTrue(state.period > 0);
+
+	long now = Machine.timer().getTime();
+
+	completedJobs++;
+	if (now > state.jobDeadline) {
+	    long lateness = now - state.jobDeadline;
+	    missedDeadlines++;
+	    if (lateness > maxLateness)
+		maxLateness = lateness;
+
+	    Lib.debug(dbgEDF, thread + " missed its deadline by " + lateness);
+	}
+
+	// an overrunning job delays the next one, but never by whole periods
+	long release = state.release + state.period;
+	if (release < now)
+	    release = now;
+
+	state.release = release;
+	state.deadline = release + state.period;
+	state.jobDeadline = state.deadline;
+	state.used = 0;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (release > now)
+	    ThreadedKernel.alarm.waitUntil(release - now);
+    }
+
+    /**
+     * Return the number of real-time jobs completed so far.
+     *
+     * @return	the number of completed jobs.
+     */
+    public long getCompletedJobs() {
+	return completedJobs;
+    }
+
+    /**
+     * Return the number of real-time jobs that finished after their
+     * deadline.
+     *
+     * @return	the number of missed deadlines.
+     */
+    public long getMissedDeadlines() {
+	return missedDeadlines;
+    }
+
+    /**
+     * Return the worst lateness of any real-time job, in ticks.
+     *
+     * @return	the maximum time by which a job finished after its deadline.
+     */
+    public long getMaxLateness() {
+	return maxLateness;
+    }
+
+    /**
+     * Return the total utilization of the admitted real-time threads.
+     *
+     * @return	the sum of budget/period over all real-time threads.
+     */
+    public double getUtilization() {
+	return utilization;
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new DeadlineState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected DeadlineState getDeadlineState(KThread thread) {
+	return (DeadlineState) getThreadState(thread);
+    }
+
+    /**
+     * Charge the current thread's ticks against its budget as well as its
+     * virtual runtime.
+     */
+    protected void chargeCurrentThread() {
+	DeadlineState state = getDeadlineState(KThread.currentThread());
+	state.used += Machine.timer().getTime() - state.lastCharged;
+
+	super.chargeCurrentThread();
+    }
+
+    private class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(ThreadQueue fairQueue) {
+	    this.fairQueue = fairQueue;
+	}
+
+	/**
+	 * Add a real-time thread that has budget left to the deadline heap,
+	 * and any other thread to the fair queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+
+	    DeadlineState state = getDeadlineState(thread);
+	    if (state.isRunnableRealTime(Machine.timer().getTime())) {
+		state.arrival = numArrivals++;
+
+		if (size == heap.length) {
+		    DeadlineState[] grown = new DeadlineState[size*2];
+		    System.arraycopy(heap, 0, grown, 0, size);
+		    heap = grown;
+		}
+
+		state.waitingIn = this;
+		siftUp(size++, state);
+	    }
+	    else
+		fairQueue.waitForAccess(thread);
+	}
+
+	/**
+	 * Remove the real-time thread with the earliest deadline, or if
+	 * there is none, the next thread from the fair queue.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (size == 0)
+		return fairQueue.nextThread();
+
+	    chargeCurrentThread();
+
+	    DeadlineState state = heap[0];
+	    remove(state);
+
+	    // if this is the ready queue, the thread is about to run
+	    state.lastCharged = Machine.timer().getTime();
+
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    fairQueue.acquire(thread);
+	}
+
+	/**
+	 * Print out the real-time threads in heap order, followed by the
+	 * contents of the fair queue.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + "(" + heap[i].deadline + ") ");
+	    fairQueue.print();
+	}
+
+	/**
+	 * Move a thread that left the real-time class from the deadline heap
+	 * to the fair queue.
+	 */
+	void requeue(DeadlineState state) {
+	    remove(state);
+	    fairQueue.waitForAccess(state.thread);
+	}
+
+	/**
+	 * Remove the specified thread from the deadline heap, wherever it is.
+	 */
+	private void remove(DeadlineState state) {
+	    int i = state.heapIndex;
+	    Lib.assertTrue(state.waitingIn == this && heap[i] == state);
+
+	    state.waitingIn = null;
+	    state.heapIndex = -1;
+
+	    DeadlineState last = heap[--size];
+	    heap[size] = null;
+	    if (i == size)
+		return;
+
+	    if (i > 0 && last.before(heap[(i-1) / 2]))
+		siftUp(i, last);
+	    else
+		siftDown(i, last);
+	}
+
+	/**
+	 * Place <i>state</i> at heap index <i>i</i> or above, moving later
+	 * threads down.
+	 */
+	private void siftUp(int i, DeadlineState state) {
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!state.before(heap[parent]))
+		    break;
+
+		place(i, heap[parent]);
+		i = parent;
+	    }
+
+	    place(i, state);
+	}
+
+	/**
+	 * Place <i>state</i> at heap index <i>i</i> or below, moving earlier
+	 * threads up.
+	 */
+	private void siftDown(int i, DeadlineState state) {
+	    while (true) {
+		int child = i*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && heap[child+1].before(heap[child]))
+		    child++;
+
+		if (!heap[child].before(state))
+		    break;
+
+		place(i, heap[child]);
+		i = child;
+	    }
+
+	    place(i, state);
+	}
+
+	private void place(int i, DeadlineState state) {
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private ThreadQueue fairQueue;
+	/**
+	 * The waiting real-time threads, as a binary min-heap ordered by
+	 * deadline. Each thread records its index, so it can be removed from
+	 * anywhere in the heap.
+	 */
+	private DeadlineState[] heap = new DeadlineState[8];
+	private int size = 0;
+    }
+
+    /**
+     * The scheduling state of a thread, including its real-time parameters.
+     */
+    protected class DeadlineState extends ThreadState {
+	/**
+	 * Allocate a new <tt>DeadlineState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public DeadlineState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the share of the processor reserved for this thread.
+	 */
+	double utilization() {
+	    return (period > 0) ? (double) budget / period : 0;
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread should be dequeued before the
+	 * specified real-time thread.
+	 */
+	boolean before(DeadlineState state) {
+	    return (deadline < state.deadline ||
+		    (deadline == state.deadline && arrival < state.arrival));
+	}
+
+	/**
+	 * Return <tt>true</tt> if this thread is in the real-time class and
+	 * has budget left. Starts a new budget for a job that has overrun
+	 * into later periods, with a later deadline; the lateness of the job
+	 * is still measured from its original deadline.
+	 */
+	boolean isRunnableRealTime(long now) {
+	    if (period == 0)
+		return false;
+
+	    while (now >= deadline) {
+		deadline += period;
+		used = 0;
+	    }
+
+	    return used < budget;
+	}
+
+	/** The ticks reserved per period, or 0. */
+	protected long budget = 0;
+	/** The period, or 0 if the thread is not in the real-time class. */
+	protected long period = 0;
+	/** The start of the current period. */
+	protected long release;
+	/** The deadline used to schedule the current job. */
+	protected long deadline;
+	/** The deadline the current job was released with. */
+	protected long jobDeadline;
+	/** The ticks the current job has run since its budget started. */
+	protected long used = 0;
+
+	/** The queue whose deadline heap holds this thread, or <tt>null</tt>. */
+	DeadlineQueue waitingIn = null;
+	/** The index of this thread in that heap. */
+	int heapIndex = -1;
+    }
+
+    private double maxUtilization;
+    private double utilization = 0;
+
+    private long numArrivals = 0;
+
+    private long completedJobs = 0;
+    private long missedDeadlines = 0;
+    private long maxLateness = 0;
+
+    private static final char dbgEDF = 'e';
+}
@@ -0,0 +1,164 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A histogram of non-negative values, such as waiting times in ticks. Values
+ * are counted in buckets whose width grows with the value, so that every
+ * value is recorded with a relative error of at most 1/16, over the whole
+ * range of <tt>long</tt>, in a fixed amount of memory. Recording a value does
+ * not allocate.
+ *
+ * <p>
+ * Values below 32 have a bucket each. Above that, each power of two is split
+ * into 16 equal buckets.
+ */
+public class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public Histogram() {
+    }
+
+    /**
+     * Count one occurrence of the specified value.
+     *
+     * @param	value	the value to record. Negative values are recorded as
+     *			0.
+     */
+    public void record(long value) {
+	if (value < 0)
+	    value = 0;
+
+	counts[bucketOf(value)]++;
+
+	if (count == 0 || value < min)
+	    min = value;
+	if (value > max)
+	    max = value;
+
+	count++;
+	total += value;
+    }
+
+    /**
+     * Add every value recorded in another histogram to this one.
+     *
+     * @param	other	the histogram to add.
+     */
+    public void add(Histogram other) {
+	if (other.count == 0)
+	    return;
+
+	for (int i=0; i<numBuckets; i++)
+	    counts[i] += other.counts[i];
+
+	if (count == 0 || other.min < min)
+	    min = other.min;
+	if (other.max > max)
+	    max = other.max;
+
+	count += other.count;
+	total += other.total;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return	the number of values recorded.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the largest value recorded.
+     *
+     * @return	the largest value recorded, or 0 if the histogram is empty.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Return the mean of the values recorded.
+     *
+     * @return	the mean of the values recorded, or 0 if the histogram is
+     *		empty.
+     */
+    public double getMean() {
+	return (count == 0) ? 0 : total / count;
+    }
+
+    /**
+     * Return the value below which the specified fraction of the recorded
+     * values fall, to within the precision of the buckets.
+     *
+     * @param	fraction	a fraction between 0 and 1.
+     * @return	the lowest value of the bucket holding the percentile, but
+     *		never more than the largest value recorded.
+     */
+    public long getPercentile(double fraction) {
+	Lib.assertTrue(fraction >= 0 && fraction <= 1);
+
+	if (count == 0)
+	    return 0;
+
+	long rank = (long) Math.ceil(fraction * count);
+	if (rank < 1)
+	    rank = 1;
+
+	long seen = 0;
+	for (int i=0; i<numBuckets; i++) {
+	    seen += counts[i];
+	    if (seen >= rank)
+		return Math.max(min, Math.min(max, lowestValueOf(i)));
+	}
+
+	return max;
+    }
+
+    /**
+     * Print a one-line summary of this histogram.
+     *
+     * @param	name	the name to print the summary under.
+     */
+    public void print(String name) {
+	System.out.println(name + ": count " + count
+			   + ", mean " + Math.round(getMean())
+			   + ", p50 " + getPercentile(0.50)
+			   + ", p90 " + getPercentile(0.90)
+			   + ", p99 " + getPercentile(0.99)
+			   + ", max " + max);
+    }
+
+    private static int bucketOf(long value) {
+	if (value < 2*subBuckets)
+	    return (int) value;
+
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int sub = (int) (value >>> (exponent - subBits));
+
+	return (exponent - subBits + 1) * subBuckets + (sub - subBuckets);
+    }
+
+    private static long lowestValueOf(int bucket) {
+	if (bucket < 2*subBuckets)
+	    return bucket;
+
+	int exponent = bucket / subBuckets + subBits - 1;
+	long sub = bucket % subBuckets + subBuckets;
+
+	return sub << (exponent - subBits);
+    }
+
+    private static final int subBits = 4;
+    private static final int subBuckets = 1 << subBits;
+    private static final int numBuckets = (64 - subBits) * subBuckets;
+
+    private long[] counts = new long[numBuckets];
+    private long count = 0;
+    private double total = 0;
+    private long min = 0;
+    private long max = 0;
+}
@@ -44,6 +44,9 @@ public class KThread {
      */
     public KThread() {
 	setDueTime(-1);			// init time to wake()
+	if (ThreadedKernel.schedulingStats != null)
+	    stats = ThreadedKernel.schedulingStats.newThread(this);
+
 	if (currentThread != null) {
 	    tcb = new TCB();
 	}	    
@@ -215,6 +218,9 @@ public class KThread {
 
 	Machine.autoGrader().finishingCurrentThread();
 
+	if (currentThread.stats != null)
+	    ThreadedKernel.schedulingStats.threadFinished(currentThread.stats);
+
 	Lib.assertTrue(toBeDestroyed == null);
 	toBeDestroyed = currentThread;
 
@@ -273,6 +279,9 @@ public class KThread {
 	if (currentThread.status != statusFinished)
 	    currentThread.status = statusBlocked;
 
+	if (currentThread.stats != null)
+	    ThreadedKernel.schedulingStats.threadSleeping(currentThread.stats);
+
 	runNextThread();
     }
 
@@ -287,8 +296,17 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 
 	status = statusReady;
-	if (this != idleThread)
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+
+	    // a yielding thread does not add to the runnable threads
+	    if (this != currentThread && ThreadedKernel.alarm != null)
+		ThreadedKernel.alarm.threadReady(this);
+
+	    if (stats != null)
+		ThreadedKernel.schedulingStats.threadReady(stats);
+	}
 
 	Machine.autoGrader().readyThread(this);
     }
@@ -339,7 +357,18 @@ public class KThread {
 	Lib.assertTrue(idleThread == null);
 
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		// skip straight to the next interrupt, unless tracing threads
+		boolean fastForward = !Lib.test(dbgThread);
+
+		while (true) {
+		    // an interrupt handler may have readied a thread during the
+		    // last tick without preempting us; run it without delay
+		    if (fastForward && numRunnableThreads() == 0)
+			Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -356,10 +385,22 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
 	nextThread.run();
     }
 
+    /**
+     * Return the number of threads, not counting the idle thread, that are
+     * running or ready to run.
+     *
+     * @return	the number of runnable threads.
+     */
+    static int numRunnableThreads() {
+	return numReady + (currentThread != idleThread ? 1 : 0);
+    }
+
     /**
      * Dispatch the CPU to this thread. Save the state of the current thread,
      * switch to the new thread by calling <tt>TCB.contextSwitch()</tt>, and
@@ -387,6 +428,13 @@ public class KThread {
 
 	currentThread.saveState();
 
+	if (stats != null) {
+	    boolean idle = (this == idleThread || currentThread == idleThread);
+	    ThreadedKernel.schedulingStats.threadRunning(stats,
+							 currentThread.stats,
+							 idle);
+	}
+
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 	+ " to: " + toString());
 
@@ -464,6 +512,20 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /** Scheduling statistics for this thread, or <tt>null</tt>. */
+    SchedulingStats.ThreadStats stats = null;
+
+    /**
+     * The wait queue this thread is in, if any, and its neighbors there.
+     *
+     * @see	nachos.threads.WaitQueue
+     */
+    WaitQueue waitingIn = null;
+    KThread waitPrev = null, waitNext = null;
+
+    /** The index of this thread in the alarm's heap, while it sleeps there. */
+    int alarmIndex = -1;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -495,6 +557,8 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** Number of threads in <tt>readyQueue</tt>. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
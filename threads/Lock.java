@@ -18,12 +18,40 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * A free lock is taken, and a lock nobody is waiting for is released,
+ * without disabling interrupts or touching the wait queue. Nachos only
+ * delivers interrupts when they are enabled again or user code runs, so these
+ * steps cannot be interrupted. The holder is only given to the wait queue,
+ * so that waiting threads can donate priority to it, once a second thread
+ * has to wait. A lock that is contended is handed directly from the
+ * releasing thread to the next waiting thread.
+ *
+ * <p>
+ * Each lock counts its acquisitions, how many of them had to wait, the
+ * total ticks spent waiting, and the longest time it was held. If
+ * <tt>ThreadedKernel.schedulingStats</tt> is set, these are printed when
+ * Nachos halts for every lock that a thread ever had to wait for, with the
+ * most waited-for locks first. Locks that are never contended are not
+ * recorded, so that creating many short-lived locks does not leak them.
  */
 public class Lock {
     /**
      * Allocate a new lock. The lock will initially be <i>free</i>.
      */
     public Lock() {
+	this(null);
+    }
+
+    /**
+     * Allocate a new lock with a name to report its statistics under. The
+     * lock will initially be <i>free</i>.
+     *
+     * @param	name	the name of the lock, or <tt>null</tt> to number it.
+     */
+    public Lock(String name) {
+	this.name = (name != null) ? name : "lock " + (numLocks++);
     }
 
     /**
@@ -33,34 +61,121 @@ public class Lock {
     public void acquire() {
 	Lib.assertTrue(!isHeldByCurrentThread());
 
+	if (tryAcquire())
+	    return;
+
 	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
-	if (lockHolder != null) {
-	    waitQueue.waitForAccess(thread);
-	    KThread.sleep();
-	}
-	else {
-	    waitQueue.acquire(thread);
-	    lockHolder = thread;
-	}
+	long waitStart = Machine.timer().getTime();
+
+	registerStats();
+	recordHolder();
+	numWaiting++;
+	waitQueue.waitForAccess(thread);
+	KThread.sleep();
 
 	Lib.assertTrue(lockHolder == thread);
 
+	acquiredAfterWait(waitStart);
+
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Acquire this lock if it is free, without waiting. The current thread
+     * must not already hold this lock.
+     *
+     * @return	<tt>true</tt> if the current thread now holds this lock.
+     */
+    public boolean tryAcquire() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	if (lockHolder != null)
+	    return false;
+
+	// nobody waits for a free lock, since release() hands it over
+	lockHolder = KThread.currentThread();
+	holderRecorded = false;
+
+	numAcquires++;
+	acquireTime = Machine.timer().getTime();
+	return true;
+    }
+
+    /**
+     * Acquire this lock, waiting at most <i>timeoutTicks</i> ticks for it.
+     * The current thread must not already hold this lock.
+     *
+     * <p>
+     * A thread waiting with a timeout does not donate priority, and is only
+     * handed the lock when no thread is waiting without one. Its timeout
+     * bounds how long it can be passed over.
+     *
+     * @param	timeoutTicks	the most ticks to wait.
+     * @return	<tt>true</tt> if the current thread now holds this lock;
+     *		<tt>false</tt> if the time ran out.
+     */
+    public boolean acquire(long timeoutTicks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	if (tryAcquire())
+	    return true;
+	if (timeoutTicks <= 0)
+	    return false;
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	long waitStart = Machine.timer().getTime();
+
+	registerStats();
+	while (lockHolder != thread && timeoutTicks > 0) {
+	    timeoutTicks =
+		ThreadedKernel.alarm.waitInQueue(timedWaitQueue, timeoutTicks);
+	}
+
+	boolean acquired = (lockHolder == thread);
+	if (acquired)
+	    acquiredAfterWait(waitStart);
+	else
+	    totalWaitTicks += Machine.timer().getTime() - waitStart;
+
+	Machine.interrupt().restore(intStatus);
+
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
+	long holdTicks = Machine.timer().getTime() - acquireTime;
+	if (holdTicks > maxHoldTicks)
+	    maxHoldTicks = holdTicks;
+
+	if (numWaiting == 0 && timedWaitQueue.isEmpty()) {
+	    lockHolder = null;
+	    return;
+	}
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
-	    lockHolder.ready();
-	
+	if (numWaiting > 0) {
+	    numWaiting--;
+	    lockHolder = waitQueue.nextThread();
+	    holderRecorded = true;
+	}
+	else {
+	    lockHolder = timedWaitQueue.removeFirst();
+	    holderRecorded = false;
+	}
+
+	acquireTime = Machine.timer().getTime();
+	lockHolder.ready();
+
 	Machine.interrupt().restore(intStatus);
     }
 
@@ -73,6 +188,78 @@ public class Lock {
 	return (lockHolder == KThread.currentThread());
     }
 
+    /**
+     * Return the name of this lock.
+     *
+     * @return	the name of this lock.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Tell the wait queue who holds this lock, if the holder took it without
+     * the queue knowing. Called before the first thread waits in the queue.
+     */
+    private void recordHolder() {
+	if (!holderRecorded) {
+	    waitQueue.acquire(lockHolder);
+	    holderRecorded = true;
+	}
+    }
+
+    /**
+     * Have this lock's counters printed at halt, once a thread has to wait
+     * for it.
+     */
+    private void registerStats() {
+	if (!registered && ThreadedKernel.schedulingStats != null) {
+	    ThreadedKernel.schedulingStats.newLock(this);
+	    registered = true;
+	}
+    }
+
+    /**
+     * Count an acquisition that had to wait since <i>waitStart</i>.
+     */
+    private void acquiredAfterWait(long waitStart) {
+	long waited = Machine.timer().getTime() - waitStart;
+
+	numAcquires++;
+	numContended++;
+	totalWaitTicks += waited;
+
+	if (ThreadedKernel.schedulingStats != null)
+	    ThreadedKernel.schedulingStats.lockWait(waited);
+    }
+
+    /**
+     * Print this lock's counters on one line.
+     */
+    void printStats() {
+	System.out.println("  " + name + ": acquired " + numAcquires
+			   + ", contended " + numContended
+			   + ", wait ticks " + totalWaitTicks
+			   + ", max hold " + maxHoldTicks);
+    }
+
+    private String name;
+    private static int numLocks = 0;
+    /** <tt>true</tt> once the scheduling statistics know this lock. */
+    private boolean registered = false;
+
     private KThread lockHolder = null;
+    /** <tt>true</tt> if the wait queue knows the current holder. */
+    private boolean holderRecorded = false;
+    /** The number of threads waiting in <tt>waitQueue</tt>. */
+    private int numWaiting = 0;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+    /** Threads waiting in <tt>acquire(long)</tt>. */
+    private WaitQueue timedWaitQueue = new WaitQueue();
+
+    long numAcquires = 0;
+    long numContended = 0;
+    long totalWaitTicks = 0;
+    long maxHoldTicks = 0;
+    private long acquireTime;
 }
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -32,7 +28,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +38,390 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).getEffectiveTickets();
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Return a random number between 0 and <i>range - 1</i>, using the Nachos
+     * random number generator so that lotteries are reproducible under
+     * <tt>-s</tt>.
+     */
+    private static long drawTicket(long range) {
+	if (range <= Integer.MAX_VALUE)
+	    return Lib.random((int) range);
+
+	return Math.min((long) (Lib.random() * range), range-1);
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * The effective tickets of the waiting threads are kept in a Fenwick
+     * tree, so drawing a winner, adding or removing a thread, and changing a
+     * thread's tickets all take <i>O(log n)</i> time.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState winner = pickNextThread();
+	    if (winner == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(winner);
+	    winner.acquire(this);
+
+	    return winner.thread;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads and return the winner,
+	 * without removing it from this queue.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket = drawTicket(total);
+
+	    // find the first slot whose prefix sum exceeds the ticket
+	    int position = 0;
+	    for (int step=capacity; step>0; step>>=1) {
+		if (position+step <= capacity && tree[position+step] <= ticket) {
+		    position += step;
+		    ticket -= tree[position];
+		}
+	    }
+
+	    return slots[position+1];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=used; i++) {
+		if (slots[i] != null)
+		    System.out.print(" " + slots[i].thread +
+				     "(" + weights[i] + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a waiting thread, with its current effective tickets.
+	 */
+	void add(LotteryState state) {
+	    int slot;
+	    if (numFree > 0) {
+		slot = freeSlots[--numFree];
+	    }
+	    else {
+		if (used == capacity)
+		    grow();
+		slot = ++used;
+	    }
+
+	    slots[slot] = state;
+	    state.slot = slot;
+	    size++;
+
+	    changeWeight(slot, state.getEffectiveTickets());
+	}
+
+	/**
+	 * Remove a waiting thread.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+
+	    changeWeight(slot, -weights[slot]);
+
+	    slots[slot] = null;
+	    state.slot = 0;
+	    freeSlots[numFree++] = slot;
+	    size--;
+	}
+
+	/**
+	 * Adjust the tickets held by a waiting thread.
+	 */
+	void changeTickets(LotteryState state, long delta) {
+	    changeWeight(state.slot, delta);
+	}
+
+	/**
+	 * Give this queue to a new owner, transferring the tickets of the
+	 * waiting threads from the previous owner to the new one.
+	 */
+	void setOwner(LotteryState state) {
+	    if (owner != null)
+		owner.changeDonation(-total);
+
+	    owner = transferPriority ? state : null;
+
+	    if (owner != null)
+		owner.changeDonation(total);
+	}
+
+	private void changeWeight(int slot, long delta) {
+	    if (delta == 0)
+		return;
+
+	    weights[slot] += delta;
+	    for (int i=slot; i<=capacity; i+=(i & -i))
+		tree[i] += delta;
+
+	    total += delta;
+
+	    if (owner != null)
+		owner.changeDonation(delta);
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree in linear time.
+	 */
+	private void grow() {
+	    int newCapacity = capacity*2;
+
+	    long[] newWeights = new long[newCapacity+1];
+	    System.arraycopy(weights, 0, newWeights, 0, capacity+1);
+
+	    LotteryState[] newSlots = new LotteryState[newCapacity+1];
+	    System.arraycopy(slots, 0, newSlots, 0, capacity+1);
+
+	    int[] newFreeSlots = new int[newCapacity];
+	    System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFree);
+
+	    long[] newTree = new long[newCapacity+1];
+	    for (int i=1; i<=newCapacity; i++) {
+		newTree[i] += newWeights[i];
+		int parent = i + (i & -i);
+		if (parent <= newCapacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    capacity = newCapacity;
+	    weights = newWeights;
+	    slots = newSlots;
+	    freeSlots = newFreeSlots;
+	    tree = newTree;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The number of slots; always a power of two. */
+	private int capacity = 8;
+	/** The Fenwick tree over <tt>weights</tt>, indexed from 1. */
+	private long[] tree = new long[capacity+1];
+	/** The effective tickets of the thread in each slot. */
+	private long[] weights = new long[capacity+1];
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] slots = new LotteryState[capacity+1];
+	/** Slots below <tt>used</tt> that are free again. */
+	private int[] freeSlots = new int[capacity];
+	private int numFree = 0;
+	/** The highest slot ever used. */
+	private int used = 0;
+	/** The number of waiting threads, and their total tickets. */
+	private int size = 0;
+	private long total = 0;
+
+	/** The thread that holds this queue, if it transfers tickets. */
+	private LotteryState owner = null;
+    }
+
+    /**
+     * The lottery state of a thread: its own tickets, the tickets donated to
+     * it through the queues it owns, and the queue it is waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the number of tickets the associated thread holds, including
+	 * donated tickets.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public long getEffectiveTickets() {
+	    return tickets + donated;
+	}
+
+	/**
+	 * Set the number of tickets of the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = (long) tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    changeEffectiveTickets(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue the associated thread is now
+	 *				waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by the specified queue.
+	 *
+	 * @param	waitQueue	the queue that was acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitingOn == waitQueue)
+		waitingOn = null;
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Adjust the tickets donated to this thread by an owned queue.
+	 */
+	void changeDonation(long delta) {
+	    donated += delta;
+
+	    changeEffectiveTickets(delta);
+	}
+
+	/**
+	 * Pass a change in effective tickets on to the queue this thread is
+	 * waiting on, and from there to that queue's owner.
+	 */
+	private void changeEffectiveTickets(long delta) {
+	    if (delta != 0 && waitingOn != null)
+		waitingOn.changeTickets(this, delta);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int tickets = priorityDefault;
+	/** The tickets donated through owned queues. */
+	protected long donated = 0;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private LotteryQueue waitingOn = null;
+	/** The slot this thread occupies in <tt>waitingOn</tt>. */
+	private int slot = 0;
     }
 }
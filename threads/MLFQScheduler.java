@@ -0,0 +1,266 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Threads wait in one of several
+ * FIFO levels; the next thread to be dequeued is the thread that has been
+ * waiting longest in the highest non-empty level (level 0).
+ *
+ * <p>
+ * A thread's level is not set by the user but follows its behavior. Every
+ * thread starts at level 0. The ticks a thread spends running are charged to
+ * it whenever it gives up the processor; a thread that uses up the allotment
+ * of its level (normally by being preempted by the timer interrupt without
+ * having blocked) moves down a level, where the allotment is twice as long. A
+ * thread that blocks (on a <tt>Semaphore</tt>, e.g. waiting for
+ * <tt>SynchConsole</tt> or the network, or on a lock, a join, or the alarm)
+ * moves up a level when it becomes ready again. This lets interactive threads
+ * run ahead of CPU-bound threads.
+ *
+ * <p>
+ * To keep CPU-bound threads from starving, every thread is moved back to
+ * level 0 periodically.
+ *
+ * <p>
+ * The scheduler is configured by the following keys in <tt>nachos.conf</tt>:
+ * <ul>
+ * <li><tt>MLFQScheduler.levels</tt>, the number of levels (default 4);
+ * <li><tt>MLFQScheduler.quantum</tt>, the allotment of level 0, in ticks
+ * (default 450, so that running from one timer interrupt to the next uses it
+ * up);
+ * <li><tt>MLFQScheduler.boostInterval</tt>, the number of ticks between
+ * resets (default 10000).
+ * </ul>
+ *
+ * <p>
+ * Like a round-robin scheduler, this scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum",
+				    Stats.TimerTicks * 9 / 10);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  Stats.TimerTicks * 20);
+
+	Lib.assertTrue(numLevels >= 1 && numLevels <= 31);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. MLFQ schedulers do not
+     *					transfer priority.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>0</tt> for the lowest
+     * level, up to <i>levels - 1</i> for level 0.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels-1 - getThreadState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level that corresponds to
+     * <i>priority</i>, and start a new allotment there. The thread must not be
+     * waiting in a queue.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < numLevels);
+
+	ThreadState state = getThreadState(thread);
+	state.level = numLevels-1 - priority;
+	state.used = 0;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread, first moving it
+     * back to level 0 if a reset has happened since it was last seen.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	ThreadState state = (ThreadState) thread.schedulingState;
+	if (state.epoch != epoch) {
+	    state.epoch = epoch;
+	    state.level = 0;
+	    state.used = 0;
+	}
+
+	return state;
+    }
+
+    /**
+     * Charge the current thread for the ticks it has run since it was last
+     * charged, moving it down a level if it has used up its allotment.
+     */
+    private void chargeCurrentThread() {
+	long now = Machine.timer().getTime();
+
+	ThreadState state = getThreadState(KThread.currentThread());
+	state.used += now - state.lastCharged;
+	state.lastCharged = now;
+
+	if (state.used >= ((long) quantum << state.level)) {
+	    if (state.level < numLevels-1)
+		state.level++;
+	    state.used = 0;
+	}
+
+	// reset every thread to level 0 once per interval
+	if (now >= nextBoost) {
+	    epoch++;
+	    nextBoost = now + boostInterval;
+	}
+    }
+
+    private class MultiLevelQueue extends ThreadQueue {
+	MultiLevelQueue() {
+	    levels = new WaitQueue[numLevels];
+	    for (int i=0; i<numLevels; i++)
+		levels[i] = new WaitQueue();
+
+	    queueEpoch = epoch;
+	}
+
+	/**
+	 * Add a thread to the end of its level. A thread that is not the
+	 * current thread was blocked (or is new), so it moves up a level.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+	    resetIfBoosted();
+
+	    ThreadState state = getThreadState(thread);
+	    if (thread != KThread.currentThread() && state.level > 0) {
+		state.level--;
+		state.used = 0;
+	    }
+
+	    levels[state.level].add(thread);
+	    nonEmpty |= (1 << state.level);
+	}
+
+	/**
+	 * Remove the first thread from the highest non-empty level.
+	 *
+	 * @return	the first thread in the highest non-empty level, or
+	 *		<tt>null</tt> if the queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    chargeCurrentThread();
+	    resetIfBoosted();
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    KThread thread = levels[level].removeFirst();
+	    if (levels[level].isEmpty())
+		nonEmpty &= ~(1 << level);
+
+	    // if this is the ready queue, the thread is about to run
+	    getThreadState(thread).lastCharged = Machine.timer().getTime();
+
+	    return thread;
+	}
+
+	/**
+	 * The specified thread has received access without waiting. Nothing
+	 * needs to be charged for this.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue, one line per level.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numLevels; i++) {
+		System.out.print(i + ": ");
+		levels[i].print();
+		System.out.println();
+	    }
+	}
+
+	/**
+	 * If every thread has been reset to level 0 since this queue was last
+	 * used, move its waiting threads to level 0 as well, keeping them in
+	 * order.
+	 */
+	private void resetIfBoosted() {
+	    if (queueEpoch == epoch)
+		return;
+
+	    queueEpoch = epoch;
+
+	    for (int i=1; i<numLevels; i++)
+		levels[0].addAll(levels[i]);
+
+	    nonEmpty = levels[0].isEmpty() ? 0 : 1;
+	}
+
+	private WaitQueue[] levels;
+	/** Bit <i>i</i> is set if level <i>i</i> is not empty. */
+	private int nonEmpty = 0;
+	private int queueEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/** The level of the associated thread; 0 is the highest. */
+	protected int level = 0;
+	/** The ticks the thread has run at its current level. */
+	protected long used = 0;
+	/** The time up to which the thread has been charged. */
+	protected long lastCharged = Machine.timer().getTime();
+	/** The last reset this state has seen. */
+	protected int epoch = MLFQScheduler.this.epoch;
+    }
+
+    private int numLevels;
+    private int quantum;
+    private int boostInterval;
+
+    /** The number of resets so far. */
+    private int epoch = 0;
+    /** The time of the next reset. */
+    private long nextBoost;
+}
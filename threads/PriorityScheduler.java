@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -72,13 +68,12 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
-	    return false;
-
-	setPriority(thread, priority+1);
+	boolean changed = (priority != priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
 
 	Machine.interrupt().restore(intStatus);
-	return true;
+	return changed;
     }
 
     public boolean decreasePriority() {
@@ -87,13 +82,12 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
-	    return false;
-
-	setPriority(thread, priority-1);
+	boolean changed = (priority != priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
 
 	Machine.interrupt().restore(intStatus);
-	return true;
+	return changed;
     }
 
     /**
@@ -109,6 +103,17 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;    
 
+    /**
+     * Return the highest priority level set in the specified bitmap.
+     *
+     * @param	bitmap	a bitmap with bit <i>p</i> set for each priority
+     *			<i>p</i>.
+     * @return	the highest priority in the bitmap, or -1 if it is empty.
+     */
+    private static int highestLevel(int bitmap) {
+	return 31 - Integer.numberOfLeadingZeros(bitmap);
+    }
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -123,7 +128,10 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+     * are kept in one FIFO list per effective priority, and a bitmap records
+     * which lists are non-empty, so every operation takes constant time
+     * regardless of how many threads are waiting.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +150,17 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		release();
+		return null;
+	    }
+
+	    remove(next);
+	    next.acquire(this);
+	    
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +171,114 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (levels == 0)
+		return null;
+
+	    return heads[highestLevel(levels)];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(" " + s.thread + "(" + level + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the tail of the list for its effective priority.
+	 */
+	void add(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    state.level = level;
+	    state.prev = tails[level];
+	    state.next = null;
+
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+
+	    levels |= (1 << level);
+	}
+
+	/**
+	 * Remove a waiting thread from its list.
+	 */
+	void remove(ThreadState state) {
+	    int level = state.level;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    state.prev = state.next = null;
+
+	    if (heads[level] == null)
+		levels &= ~(1 << level);
+	}
+
+	/**
+	 * Give this queue to a new owner, taking back any priority it donated
+	 * to the previous owner.
+	 */
+	void setOwner(ThreadState state) {
+	    release();
+
+	    if (transferPriority) {
+		owner = state;
+		updateDonation();
+	    }
+	}
+
+	/**
+	 * Take this queue away from its owner, along with any priority it
+	 * donated.
+	 */
+	void release() {
+	    if (owner == null)
+		return;
+
+	    ThreadState oldOwner = owner;
+	    owner = null;
+
+	    if (donation >= 0) {
+		oldOwner.removeDonation(donation);
+		donation = -1;
+		oldOwner.updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * Bring the priority donated to the owner up to date with the highest
+	 * effective priority of any waiting thread. Called whenever that might
+	 * have changed.
+	 */
+	void updateDonation() {
+	    if (owner == null)
+		return;
+
+	    int top = highestLevel(levels);
+	    if (top == donation)
+		return;
+
+	    if (donation >= 0)
+		owner.removeDonation(donation);
+	    if (top >= 0)
+		owner.addDonation(top);
+	    donation = top;
+
+	    owner.updateEffectivePriority();
 	}
 
 	/**
@@ -168,6 +286,17 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The first and last waiting thread at each priority. */
+	private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+	private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set if some thread is waiting at priority p. */
+	private int levels = 0;
+
+	/** The thread that holds this queue, if it transfers priority. */
+	private ThreadState owner = null;
+	/** The priority currently donated to the owner, or -1. */
+	private int donation = -1;
     }
 
     /**
@@ -188,6 +317,7 @@ public class PriorityScheduler extends Scheduler {
 	    this.thread = thread;
 	    
 	    setPriority(priorityDefault);
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -205,8 +335,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +349,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +365,11 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	    waitQueue.updateDonation();
 	}
 
 	/**
@@ -250,12 +383,69 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitingOn == waitQueue)
+		waitingOn = null;
+
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Record that an owned queue donates the specified priority.
+	 */
+	void addDonation(int level) {
+	    if (donations[level]++ == 0)
+		donationLevels |= (1 << level);
+	}
+
+	/**
+	 * Record that an owned queue no longer donates the specified priority.
+	 */
+	void removeDonation(int level) {
+	    Lib.assertTrue(donations[level] > 0);
+
+	    if (--donations[level] == 0)
+		donationLevels &= ~(1 << level);
+	}
+
+	/**
+	 * Recompute the effective priority from the base priority and the
+	 * donations received. If it changed and this thread is waiting, move
+	 * it to the list for its new priority, and pass the change on to the
+	 * owner of the queue it waits on. Propagation stops at the first
+	 * thread whose effective priority does not change.
+	 */
+	void updateEffectivePriority() {
+	    int effective = Math.max(priority, highestLevel(donationLevels));
+	    if (effective == effectivePriority)
+		return;
+
+	    effectivePriority = effective;
+
+	    if (waitingOn != null) {
+		waitingOn.remove(this);
+		waitingOn.add(this);
+		waitingOn.updateDonation();
+	    }
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The effective priority of the associated thread. */
+	protected int effectivePriority = -1;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private PriorityQueue waitingOn = null;
+	/** The list this thread is in, and its neighbours there. */
+	private int level;
+	private ThreadState prev = null, next = null;
+
+	/**
+	 * The number of owned queues donating each priority, and a bitmap of
+	 * the priorities with a non-zero count.
+	 */
+	private int[] donations = new int[priorityMaximum+1];
+	private int donationLevels = 0;
     }
 }
@@ -0,0 +1,428 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of readers hold it at once, or a
+ * single writer. The operations are:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no writer holds or is waiting for
+ * the lock, and then hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, and then
+ * hold it for writing.
+ * <li><tt>releaseRead()</tt> and <tt>releaseWrite()</tt>: give up the lock.
+ * <li><tt>downgrade()</tt>: atomically turn a write hold into a read hold,
+ * without letting another writer in between.
+ * </ul>
+ *
+ * <p>
+ * Access is phase-fair. Once a writer is waiting, new readers wait behind it,
+ * so a stream of readers cannot starve writers. When a writer releases the
+ * lock, every reader that was waiting is let in together before the next
+ * writer, so a stream of writers cannot starve readers either. Waiting
+ * readers and writers are each queued in a thread queue from the scheduler,
+ * which chooses the order within each group.
+ *
+ * <p>
+ * Both queues transfer priority. Waiting threads donate to the writer that
+ * holds the lock, or to one of the readers that hold it (a thread queue has a
+ * single owner). When that reader releases the lock, the donation moves on to
+ * another reader that still holds it.
+ *
+ * <p>
+ * As with <tt>Lock</tt>, only a thread that holds the lock may release it,
+ * and a thread must not acquire a lock it already holds.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. Waits while a writer holds
+     * the lock or is waiting for it.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || numWritersWaiting > 0) {
+	    long waitStart = Machine.timer().getTime();
+
+	    numReadersWaiting++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    if (ThreadedKernel.schedulingStats != null)
+		ThreadedKernel.schedulingStats.lockWait(
+		    Machine.timer().getTime() - waitStart);
+	}
+	else {
+	    addReader(thread);
+	    if (numReaders == 1)
+		setDonee(thread);
+	}
+
+	Lib.assertTrue(isReadHeldByCurrentThread());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * reading. If it was the last reader, a waiting writer gets the lock.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	removeReader(thread);
+
+	if (numReaders == 0) {
+	    donee = null;
+	    if (numWritersWaiting > 0)
+		grantWrite();
+	}
+	else if (donee == thread) {
+	    setDonee(readers[0]);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. Waits while any other thread
+     * holds the lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || numReaders > 0) {
+	    long waitStart = Machine.timer().getTime();
+
+	    numWritersWaiting++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    if (ThreadedKernel.schedulingStats != null)
+		ThreadedKernel.schedulingStats.lockWait(
+		    Machine.timer().getTime() - waitStart);
+	}
+	else {
+	    writer = thread;
+	    setDonee(thread);
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock, which the current thread holds for
+     * writing. Any waiting readers get the lock; if there are none, a waiting
+     * writer does.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	donee = null;
+
+	if (numReadersWaiting > 0)
+	    admitReaders();
+	else if (numWritersWaiting > 0)
+	    grantWrite();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically turn the current thread's write hold on this lock into a
+     * read hold. Any waiting readers get the lock along with it; waiting
+     * writers keep waiting.
+     */
+    public void downgrade() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	writer = null;
+	addReader(thread);
+	admitReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds this lock for reading.
+     *
+     * @return	true if the current thread holds this lock for reading.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return (indexOfReader(KThread.currentThread()) >= 0);
+    }
+
+    /**
+     * Test if the current thread holds this lock at all.
+     *
+     * @return	true if the current thread holds this lock for reading or
+     *		writing.
+     */
+    public boolean isHeldByCurrentThread() {
+	return (isWriteHeldByCurrentThread() || isReadHeldByCurrentThread());
+    }
+
+    /**
+     * Give the lock to the next waiting writer.
+     */
+    private void grantWrite() {
+	writer = writeQueue.nextThread();
+	numWritersWaiting--;
+
+	donee = writer;
+	readQueue.acquire(writer);
+
+	writer.ready();
+    }
+
+    /**
+     * Give the lock to every waiting reader, and make sure waiting writers
+     * donate to one of the readers.
+     */
+    private void admitReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    numReadersWaiting--;
+	    addReader(thread);
+	    thread.ready();
+	}
+
+	setDonee(readers[0]);
+    }
+
+    /**
+     * Make the specified holder of the lock the thread that waiting threads
+     * donate priority to.
+     */
+    private void setDonee(KThread thread) {
+	donee = thread;
+	readQueue.acquire(thread);
+	writeQueue.acquire(thread);
+    }
+
+    private void addReader(KThread thread) {
+	if (numReaders == readers.length) {
+	    KThread[] newReaders = new KThread[readers.length * 2];
+	    System.arraycopy(readers, 0, newReaders, 0, numReaders);
+	    readers = newReaders;
+	}
+
+	readers[numReaders++] = thread;
+    }
+
+    private void removeReader(KThread thread) {
+	int i = indexOfReader(thread);
+	Lib.assertTrue(i >= 0);
+
+	readers[i] = readers[--numReaders];
+	readers[numReaders] = null;
+    }
+
+    private int indexOfReader(KThread thread) {
+	for (int i=0; i<numReaders; i++) {
+	    if (readers[i] == thread)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private static class Worker implements Runnable {
+	Worker(int id, Lock lock, ReadWriteLock rwLock, int[] shared) {
+	    this.id = id;
+	    this.lock = lock;
+	    this.rwLock = rwLock;
+	    this.shared = shared;
+	}
+
+	public void run() {
+	    for (int i=0; i<benchmarkOps; i++) {
+		boolean write = ((id + i) % benchmarkWriteEvery == 0);
+
+		if (lock != null)
+		    lock.acquire();
+		else if (write)
+		    rwLock.acquireWrite();
+		else
+		    rwLock.acquireRead();
+
+		int value = shared[0];
+		// hold the lock across a blocking operation, such as disk I/O
+		ThreadedKernel.alarm.waitUntil(benchmarkHoldTicks);
+		if (write)
+		    shared[0] = value + 1;
+		else
+		    Lib.assertTrue(shared[0] == value);
+
+		if (lock != null)
+		    lock.release();
+		else if (write)
+		    rwLock.releaseWrite();
+		else
+		    rwLock.releaseRead();
+
+		KThread.yield();
+	    }
+	}
+
+	private int id;
+	private Lock lock;
+	private ReadWriteLock rwLock;
+	private int[] shared;
+    }
+
+    /**
+     * Run the benchmark workload with either an exclusive lock or a
+     * read-write lock, and return the ticks it took.
+     */
+    private static long runBenchmark(Lock lock, ReadWriteLock rwLock) {
+	int[] shared = new int[1];
+	KThread[] threads = new KThread[benchmarkThreads];
+
+	long start = Machine.timer().getTime();
+
+	for (int i=0; i<benchmarkThreads; i++) {
+	    threads[i] = new KThread(new Worker(i, lock, rwLock, shared));
+	    threads[i].setName("rw worker " + i).fork();
+	}
+	for (int i=0; i<benchmarkThreads; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(shared[0] == benchmarkThreads * benchmarkOps /
+		       benchmarkWriteEvery);
+
+	return Machine.timer().getTime() - start;
+    }
+
+    /**
+     * Measure how long a read-mostly workload takes under an exclusive
+     * <tt>Lock</tt> and under a <tt>ReadWriteLock</tt>, and print both. Each
+     * of several threads repeatedly takes the lock and holds it across a
+     * short sleep; one operation in every few is a write.
+     */
+    public static void benchmark() {
+	long lockTicks = runBenchmark(new Lock(), null);
+	long rwLockTicks = runBenchmark(null, new ReadWriteLock());
+
+	System.out.println("ReadWriteLock benchmark: " + benchmarkThreads
+			   + " threads, " + benchmarkOps + " operations each, 1 in "
+			   + benchmarkWriteEvery + " writes");
+	System.out.println("  Lock: " + lockTicks + " ticks");
+	System.out.println("  ReadWriteLock: " + rwLockTicks + " ticks");
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final ReadWriteLock rwLock = new ReadWriteLock();
+	final int[] order = new int[4];
+	final int[] count = new int[1];
+
+	rwLock.acquireWrite();
+
+	// a reader waiting behind the writer
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireRead();
+		    order[count[0]++] = 1;
+		    rwLock.releaseRead();
+		}
+	    }).setName("reader");
+	reader.fork();
+	rwLock.yieldUntilWaiting(1, 0);
+
+	// a writer waiting behind both
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireWrite();
+		    order[count[0]++] = 2;
+		    rwLock.releaseWrite();
+		}
+	    }).setName("writer");
+	writer.fork();
+	rwLock.yieldUntilWaiting(1, 1);
+
+	Lib.assertTrue(count[0] == 0);
+
+	// the waiting reader shares the lock, the writer keeps waiting
+	rwLock.downgrade();
+	reader.join();
+	Lib.assertTrue(count[0] == 1 && order[0] == 1);
+
+	rwLock.releaseRead();
+	writer.join();
+	Lib.assertTrue(count[0] == 2 && order[1] == 2);
+    }
+
+    /**
+     * Yield until the specified numbers of readers and writers are waiting.
+     * The scheduler decides when forked threads run, so one yield is not
+     * enough.
+     */
+    private void yieldUntilWaiting(int readers, int writers) {
+	while (true) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean waiting = (numReadersWaiting == readers &&
+			       numWritersWaiting == writers);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (waiting)
+		break;
+
+	    KThread.yield();
+	}
+    }
+
+    private static final int benchmarkThreads = 8;
+    private static final int benchmarkOps = 10;
+    private static final int benchmarkWriteEvery = 10;
+    private static final int benchmarkHoldTicks = 100;
+
+    /** The thread holding this lock for writing, or <tt>null</tt>. */
+    private KThread writer = null;
+    /** The threads holding this lock for reading. */
+    private KThread[] readers = new KThread[4];
+    private int numReaders = 0;
+    /** The holder that waiting threads donate priority to, or <tt>null</tt>. */
+    private KThread donee = null;
+
+    private int numReadersWaiting = 0;
+    private int numWritersWaiting = 0;
+
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
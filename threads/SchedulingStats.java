@@ -0,0 +1,240 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Records how threads are scheduled: how long each thread waits in the ready
+ * queue between <tt>ready()</tt> and being run, how many context switches
+ * happen (counting switches to or from the idle thread apart), and how long
+ * threads that block in <tt>Lock.acquire()</tt>, <tt>Semaphore.P()</tt> and
+ * <tt>Condition2.sleep()</tt> wait there. All times are in ticks. Ready-queue
+ * waits are kept per live thread as well as globally; when a thread
+ * finishes, its counters are merged into those of all finished threads, so
+ * that memory use does not grow with the number of threads created. Each
+ * lock's counters are printed along with them, as are the deadline counters
+ * of <tt>EDFScheduler</tt> when it is the scheduler.
+ *
+ * <p>
+ * Enabled by setting <tt>ThreadedKernel.schedulingStats</tt> to
+ * <tt>true</tt> in <tt>nachos.conf</tt>. The histograms are printed when
+ * Nachos halts, after the machine statistics.
+ */
+public class SchedulingStats {
+    /**
+     * Allocate a new scheduling statistics recorder, and arrange for it to be
+     * printed when Nachos halts.
+     */
+    public SchedulingStats() {
+	Machine.setHaltHandler(new Runnable() {
+		public void run() { print(); }
+	    });
+    }
+
+    /**
+     * Per-thread statistics.
+     */
+    static class ThreadStats {
+	ThreadStats(KThread thread) {
+	    this.thread = thread;
+	}
+
+	KThread thread;
+	/** The index of this entry in <tt>threads</tt>, or -1. */
+	int index = -1;
+	/** The time the thread last became ready, or -1. */
+	long readySince = -1;
+	long numSwitchesIn = 0;
+	long numBlocks = 0;
+	Histogram readyWait = new Histogram();
+    }
+
+    /**
+     * Called when a thread is created.
+     */
+    ThreadStats newThread(KThread thread) {
+	ThreadStats stats = new ThreadStats(thread);
+	stats.index = threads.size();
+	threads.add(stats);
+	numThreads++;
+	return stats;
+    }
+
+    /**
+     * Called when the current thread finishes. Merges its counters into
+     * those of the finished threads, and forgets it.
+     */
+    void threadFinished(ThreadStats stats) {
+	if (stats.index < 0)
+	    return;
+
+	finishedReadyWait.add(stats.readyWait);
+	finishedSwitchesIn += stats.numSwitchesIn;
+	finishedBlocks += stats.numBlocks;
+	numFinished++;
+
+	// move the last entry into the finished thread's place
+	ThreadStats last = threads.remove(threads.size()-1);
+	if (last != stats) {
+	    threads.set(stats.index, last);
+	    last.index = stats.index;
+	}
+	stats.index = -1;
+    }
+
+    /**
+     * Called the first time a thread has to wait for a lock.
+     */
+    void newLock(Lock lock) {
+	locks.add(lock);
+    }
+
+    /**
+     * Called when a thread is moved to the ready state.
+     */
+    void threadReady(ThreadStats stats) {
+	stats.readySince = Machine.timer().getTime();
+    }
+
+    /**
+     * Called when the CPU is dispatched to a thread, before the context
+     * switch.
+     *
+     * @param	stats		the thread being dispatched.
+     * @param	previous	the thread giving up the CPU.
+     * @param	idle		<tt>true</tt> if either thread is the idle
+     *				thread. Such switches are counted apart from
+     *				the others.
+     */
+    void threadRunning(ThreadStats stats, ThreadStats previous,
+		       boolean idle) {
+	if (stats.readySince >= 0) {
+	    long waited = Machine.timer().getTime() - stats.readySince;
+	    stats.readyWait.record(waited);
+	    readyWait.record(waited);
+	    stats.readySince = -1;
+	}
+
+	if (stats != previous) {
+	    stats.numSwitchesIn++;
+	    if (idle)
+		numIdleSwitches++;
+	    else
+		numContextSwitches++;
+	}
+    }
+
+    /**
+     * Called when the current thread blocks or finishes.
+     */
+    void threadSleeping(ThreadStats stats) {
+	stats.numBlocks++;
+	numBlocks++;
+    }
+
+    /**
+     * Record how long a thread waited in <tt>Lock.acquire()</tt>.
+     */
+    void lockWait(long ticks) {
+	lockWait.record(ticks);
+    }
+
+    /**
+     * Record how long a thread waited in <tt>Semaphore.P()</tt>.
+     */
+    void semaphoreWait(long ticks) {
+	semaphoreWait.record(ticks);
+    }
+
+    /**
+     * Record how long a thread slept in <tt>Condition2.sleep()</tt>.
+     */
+    void conditionWait(long ticks) {
+	conditionWait.record(ticks);
+    }
+
+    /**
+     * Print the global histograms, followed by the ready-queue waits of each
+     * live thread that was ever ready and of all finished threads together,
+     * and the counters of each lock that was ever contended, the locks
+     * waited for longest first. Under <tt>EDFScheduler</tt>, also print the
+     * real-time job counters.
+     */
+    public void print() {
+	System.out.println("Scheduling: context switches " + numContextSwitches
+			   + ", to or from idle " + numIdleSwitches
+			   + ", blocks " + numBlocks
+			   + ", threads " + numThreads);
+	readyWait.print("Ready wait");
+	lockWait.print("Lock wait");
+	semaphoreWait.print("Semaphore wait");
+	conditionWait.print("Condition wait");
+
+	for (int i=0; i<threads.size(); i++) {
+	    ThreadStats stats = threads.get(i);
+	    if (stats.readyWait.getCount() == 0)
+		continue;
+
+	    stats.readyWait.print("  " + stats.thread + " ready wait");
+	    System.out.println("  " + stats.thread + ": switched in "
+			       + stats.numSwitchesIn + ", blocked "
+			       + stats.numBlocks);
+	}
+
+	if (finishedReadyWait.getCount() > 0) {
+	    finishedReadyWait.print("  finished threads ready wait");
+	    System.out.println("  " + numFinished + " finished threads: "
+			       + "switched in " + finishedSwitchesIn
+			       + ", blocked " + finishedBlocks);
+	}
+
+	Collections.sort(locks, byWaitTicks);
+
+	System.out.println("Locks:");
+	for (int i=0; i<locks.size(); i++)
+	    locks.get(i).printStats();
+
+	if (ThreadedKernel.scheduler instanceof EDFScheduler) {
+	    EDFScheduler edf = (EDFScheduler) ThreadedKernel.scheduler;
+	    System.out.println("Real-time: jobs " + edf.getCompletedJobs()
+			       + ", missed deadlines " + edf.getMissedDeadlines()
+			       + ", max lateness " + edf.getMaxLateness()
+			       + ", utilization "
+			       + Math.round(edf.getUtilization() * 100) + "%");
+	}
+    }
+
+    private static final Comparator<Lock> byWaitTicks =
+	new Comparator<Lock>() {
+	    public int compare(Lock l1, Lock l2) {
+		if (l1.totalWaitTicks != l2.totalWaitTicks)
+		    return (l1.totalWaitTicks > l2.totalWaitTicks) ? -1 : 1;
+		else
+		    return 0;
+	    }
+	};
+
+    private long numContextSwitches = 0;
+    private long numIdleSwitches = 0;
+    private long numBlocks = 0;
+
+    private Histogram readyWait = new Histogram();
+    private Histogram lockWait = new Histogram();
+    private Histogram semaphoreWait = new Histogram();
+    private Histogram conditionWait = new Histogram();
+
+    /** The live threads, in no particular order. */
+    private ArrayList<ThreadStats> threads = new ArrayList<ThreadStats>();
+    private long numThreads = 0;
+
+    /** The counters of every finished thread, together. */
+    private Histogram finishedReadyWait = new Histogram();
+    private long finishedSwitchesIn = 0;
+    private long finishedBlocks = 0;
+    private long numFinished = 0;
+    /** The locks that a thread ever had to wait for. */
+    private ArrayList<Lock> locks = new ArrayList<Lock>();
+}
@@ -38,8 +38,14 @@ public class Semaphore {
 	boolean intStatus = Machine.interrupt().disable();
 
 	if (value == 0) {
+	    long waitStart = Machine.timer().getTime();
+
 	    waitQueue.waitForAccess(KThread.currentThread());
 	    KThread.sleep();
+
+	    if (ThreadedKernel.schedulingStats != null)
+		ThreadedKernel.schedulingStats.semaphoreWait(
+		    Machine.timer().getTime() - waitStart);
 	}
 	else {
 	    value--;
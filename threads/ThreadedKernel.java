@@ -31,6 +31,10 @@ public class ThreadedKernel extends Kernel {
 	else
 	    fileSystem = null;
 
+	// record scheduling statistics if requested
+	if (Config.getBoolean("ThreadedKernel.schedulingStats", false))
+	    schedulingStats = new SchedulingStats();
+
 	// start threading
 	new KThread(null);
 
@@ -41,14 +45,22 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
+     * <tt>SynchList</tt>, <tt>BoundedSynchList</tt>, <tt>ReadWriteLock</tt>,
+     * <tt>Communicator</tt>, and <tt>ElevatorBank</tt> classes. If
+     * <tt>ThreadedKernel.lockBenchmark</tt> is set, also compare
+     * <tt>ReadWriteLock</tt> against <tt>Lock</tt> under contention. Note that
+     * the autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
     public void selfTest() {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	BoundedSynchList.selfTest();
+	ReadWriteLock.selfTest();
+	Communicator.selfTest();
+	if (Config.getBoolean("ThreadedKernel.lockBenchmark", false))
+	    ReadWriteLock.benchmark();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -74,6 +86,11 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /**
+     * Globally accessible reference to the scheduling statistics, or
+     * <tt>null</tt> if they are not being recorded.
+     */
+    public static SchedulingStats schedulingStats = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
@@ -83,4 +100,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static CFSScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
 }
@@ -0,0 +1,181 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A FIFO thread queue that links waiting threads through fields in
+ * <tt>KThread</tt> itself, so that adding and removing threads never
+ * allocates. A thread can be in at most one <tt>WaitQueue</tt> at a time,
+ * which always holds in Nachos, since a waiting thread is blocked on exactly
+ * one thing (or is ready).
+ *
+ * <p>
+ * A wait queue does not transfer priority, so it is meant for queues that do
+ * not need to: round-robin scheduling, condition variables, and the levels of
+ * other schedulers' queues.
+ */
+public class WaitQueue extends ThreadQueue {
+    /**
+     * Allocate a new, empty wait queue.
+     */
+    public WaitQueue() {
+    }
+
+    /**
+     * Add a thread to the end of the queue.
+     *
+     * @param	thread	the thread to append to the queue.
+     */
+    public void waitForAccess(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	add(thread);
+    }
+
+    /**
+     * Remove a thread from the beginning of the queue.
+     *
+     * @return	the first thread on the queue, or <tt>null</tt> if the queue
+     *		is empty.
+     */
+    public KThread nextThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return removeFirst();
+    }
+
+    /**
+     * The specified thread has received access, without using
+     * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. A wait queue does
+     * not transfer priority, so there is nothing to do. Other threads may
+     * still be waiting, as when a reader joins a <tt>ReadWriteLock</tt> that
+     * a writer is waiting for.
+     */
+    public void acquire(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Print out the contents of the queue.
+     */
+    public void print() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (KThread thread=first; thread!=null; thread=thread.waitNext)
+	    System.out.print(thread + " ");
+    }
+
+    /**
+     * Test whether any thread is waiting in this queue.
+     *
+     * @return	<tt>true</tt> if the queue is empty.
+     */
+    public boolean isEmpty() {
+	return (first == null);
+    }
+
+    /**
+     * Return the number of threads waiting in this queue.
+     *
+     * @return	the number of waiting threads.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Add a thread to the end of the queue.
+     *
+     * @param	thread	a thread that is not in any wait queue.
+     */
+    public void add(KThread thread) {
+	Lib.assertTrue(thread.waitingIn == null);
+
+	thread.waitingIn = this;
+	thread.waitPrev = last;
+	thread.waitNext = null;
+
+	if (last == null)
+	    first = thread;
+	else
+	    last.waitNext = thread;
+	last = thread;
+
+	size++;
+    }
+
+    /**
+     * Remove the first thread from the queue.
+     *
+     * @return	the first thread on the queue, or <tt>null</tt> if the queue
+     *		is empty.
+     */
+    public KThread removeFirst() {
+	KThread thread = first;
+	if (thread != null)
+	    unlink(thread);
+
+	return thread;
+    }
+
+    /**
+     * Remove the specified thread from this queue, wherever it is, in
+     * constant time.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was in this queue.
+     */
+    public boolean remove(KThread thread) {
+	if (thread.waitingIn != this)
+	    return false;
+
+	unlink(thread);
+	return true;
+    }
+
+    /**
+     * Move every thread in another queue to the end of this one, keeping
+     * their order.
+     *
+     * @param	queue	the queue to empty into this one.
+     */
+    public void addAll(WaitQueue queue) {
+	if (queue.first == null)
+	    return;
+
+	for (KThread thread=queue.first; thread!=null; thread=thread.waitNext)
+	    thread.waitingIn = this;
+
+	if (last == null)
+	    first = queue.first;
+	else
+	    last.waitNext = queue.first;
+	queue.first.waitPrev = last;
+	last = queue.last;
+	size += queue.size;
+
+	queue.first = queue.last = null;
+	queue.size = 0;
+    }
+
+    private void unlink(KThread thread) {
+	if (thread.waitPrev == null)
+	    first = thread.waitNext;
+	else
+	    thread.waitPrev.waitNext = thread.waitNext;
+
+	if (thread.waitNext == null)
+	    last = thread.waitPrev;
+	else
+	    thread.waitNext.waitPrev = thread.waitPrev;
+
+	thread.waitingIn = null;
+	thread.waitPrev = thread.waitNext = null;
+
+	size--;
+    }
+
+    private KThread first = null;
+    private KThread last = null;
+    private int size = 0;
+}
@@ -131,14 +131,25 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
+	int memorySize = processor.getNumPhysPages() * pageSize;
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = Math.min(length, memorySize-vaddr);
+
+	// copy a page at a time, which works for any memory backing
+	for (int done=0; done<amount; ) {
+	    int paddr = vaddr + done;
+	    int pageOffset = paddr % pageSize;
+	    int chunk = Math.min(amount-done, pageSize-pageOffset);
+
+	    processor.readPhysicalPage(paddr / pageSize, pageOffset,
+				       data, offset+done, chunk);
+	    done += chunk;
+	}
 
 	return amount;
     }
@@ -174,14 +185,25 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	Processor processor = Machine.processor();
+	int memorySize = processor.getNumPhysPages() * pageSize;
 	
 	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
+	if (vaddr < 0 || vaddr >= memorySize)
 	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = Math.min(length, memorySize-vaddr);
+
+	// copy a page at a time, which works for any memory backing
+	for (int done=0; done<amount; ) {
+	    int paddr = vaddr + done;
+	    int pageOffset = paddr % pageSize;
+	    int chunk = Math.min(amount-done, pageSize-pageOffset);
+
+	    processor.writePhysicalPage(paddr / pageSize, pageOffset,
+					data, offset+done, chunk);
+	    done += chunk;
+	}
 
 	return amount;
     }